@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+/**
+ * This class decodes the access bits of a Mifare Classic sector trailer.
+ * 
+ * Each sector has four access conditions: one for each of the three data
+ * block groups and one for the trailer. A condition is the C1 C2 C3 bits
+ * expressed as a 3-bit number with C1 as the most significant bit. In the 4
+ * block sectors a group is one block, in the 16 block sectors of a 4k tag a
+ * data group is five blocks.
+ */
+public class AccessConditions {
+
+    /**
+     * The group index of the sector trailer
+     */
+    public final static int TRAILER = 3;
+
+    private final static int NEVER = 0;
+    private final static int KEY_AB = 1;
+    private final static int KEY_A = 2;
+    private final static int KEY_B = 3;
+
+    // Data block condition -> {read, write}
+    private final static int[][] DATA_ACCESS = { { KEY_AB, KEY_AB }, // 000
+            { KEY_AB, NEVER }, // 001
+            { KEY_AB, NEVER }, // 010
+            { KEY_B, KEY_B }, // 011
+            { KEY_AB, KEY_B }, // 100
+            { KEY_B, NEVER }, // 101
+            { KEY_AB, KEY_B }, // 110
+            { NEVER, NEVER } }; // 111
+
+    // Trailer condition -> {write key A, read access bits, write access bits,
+    // write key B}
+    private final static int[][] TRAILER_ACCESS = { { KEY_A, KEY_A, NEVER, KEY_A }, // 000
+            { KEY_A, KEY_A, KEY_A, KEY_A }, // 001
+            { NEVER, KEY_A, NEVER, NEVER }, // 010
+            { KEY_B, KEY_AB, KEY_B, KEY_B }, // 011
+            { KEY_B, KEY_AB, NEVER, KEY_B }, // 100
+            { NEVER, KEY_AB, KEY_B, NEVER }, // 101
+            { NEVER, KEY_AB, NEVER, NEVER }, // 110
+            { NEVER, KEY_AB, NEVER, NEVER } }; // 111
+
+    private final static int WRITE_KEY_A = 0;
+    private final static int READ_ACCESS_BITS = 1;
+    private final static int WRITE_ACCESS_BITS = 2;
+    private final static int WRITE_KEY_B = 3;
+
+    private int[] mConditions;
+
+    private AccessConditions(int[] conditions) {
+        mConditions = conditions;
+    }
+
+    /**
+     * Decode the access bits (bytes 6-8) of a sector trailer.
+     * 
+     * @param trailer
+     *            The trailer block (Tag.BLOCK_SIZE bytes)
+     * @return The access conditions, or null if the inverted copies of the
+     *         bits don't match, which blocks the sector on a real tag.
+     */
+    public static AccessConditions decode(byte[] trailer) {
+        assert (trailer != null && trailer.length == Tag.BLOCK_SIZE);
+
+        int b6 = trailer[6] & 0xFF, b7 = trailer[7] & 0xFF, b8 = trailer[8] & 0xFF;
+        if (((b6 & 0x0F) ^ (b7 >> 4)) != 0x0F || ((b6 >> 4) ^ (b8 & 0x0F)) != 0x0F
+                || ((b7 & 0x0F) ^ (b8 >> 4)) != 0x0F)
+            return null;
+
+        int[] conditions = new int[4];
+        for (int group = 0; group < 4; ++group) {
+            int c1 = (b7 >> (4 + group)) & 1;
+            int c2 = (b8 >> group) & 1;
+            int c3 = (b8 >> (4 + group)) & 1;
+            conditions[group] = (c1 << 2) | (c2 << 1) | c3;
+        }
+        return new AccessConditions(conditions);
+    }
+
+    /**
+     * Encode the access conditions of the three data block groups and the
+     * trailer into the three access bytes of a sector trailer.
+     */
+    public static byte[] encode(int c0, int c1, int c2, int c3) {
+        int[] conditions = { c0, c1, c2, c3 };
+        int nc1 = 0, nc2 = 0, nc3 = 0;
+        for (int i = 0; i < 4; ++i) {
+            nc1 |= ((conditions[i] >> 2) & 1) << i;
+            nc2 |= ((conditions[i] >> 1) & 1) << i;
+            nc3 |= (conditions[i] & 1) << i;
+        }
+
+        return new byte[] { (byte) (((~nc2 & 0x0F) << 4) | (~nc1 & 0x0F)), (byte) ((nc1 << 4) | (~nc3 & 0x0F)),
+                (byte) ((nc3 << 4) | nc2) };
+    }
+
+    /**
+     * Get the access group of a block.
+     * 
+     * @param blockInSector
+     *            The index of the block within its sector
+     * @param blocksInSector
+     *            The number of blocks in the sector (4 or 16)
+     * @return The group index, TRAILER for the last block
+     */
+    public static int getGroup(int blockInSector, int blocksInSector) {
+        if (blockInSector == blocksInSector - 1)
+            return TRAILER;
+        return blocksInSector == 4 ? blockInSector : blockInSector / 5;
+    }
+
+    /**
+     * @return The C1 C2 C3 condition of a group
+     */
+    public int getCondition(int group) {
+        assert (group >= 0 && group <= TRAILER);
+        return mConditions[group];
+    }
+
+    /**
+     * @return true if key B can be read from the trailer. Key B then can't be
+     *         used for accessing the data blocks.
+     */
+    public boolean isKeyBReadable() {
+        int c = mConditions[TRAILER];
+        return c == 0 || c == 1 || c == 2;
+    }
+
+    /**
+     * Check if a key may read a group. For the trailer this is reading the
+     * access bits; key A is never readable.
+     */
+    public boolean canRead(int group, boolean keyB) {
+        if (group == TRAILER)
+            return allows(TRAILER_ACCESS[mConditions[TRAILER]][READ_ACCESS_BITS], keyB);
+        return allowsData(DATA_ACCESS[mConditions[group]][0], keyB);
+    }
+
+    /**
+     * Check if a key may write a data group. Trailers are written in parts,
+     * see canWriteKeyA, canWriteAccessBits and canWriteKeyB.
+     */
+    public boolean canWrite(int group, boolean keyB) {
+        assert (group != TRAILER);
+        return allowsData(DATA_ACCESS[mConditions[group]][1], keyB);
+    }
+
+    public boolean canWriteKeyA(boolean keyB) {
+        return allows(TRAILER_ACCESS[mConditions[TRAILER]][WRITE_KEY_A], keyB);
+    }
+
+    public boolean canWriteAccessBits(boolean keyB) {
+        return allows(TRAILER_ACCESS[mConditions[TRAILER]][WRITE_ACCESS_BITS], keyB);
+    }
+
+    public boolean canWriteKeyB(boolean keyB) {
+        return allows(TRAILER_ACCESS[mConditions[TRAILER]][WRITE_KEY_B], keyB);
+    }
+
+    private boolean allowsData(int access, boolean keyB) {
+        if (keyB && isKeyBReadable())
+            return false;
+        return allows(access, keyB);
+    }
+
+    private static boolean allows(int access, boolean keyB) {
+        return access == KEY_AB || access == (keyB ? KEY_B : KEY_A);
+    }
+}
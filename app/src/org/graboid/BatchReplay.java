@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.util.Arrays;
+
+/**
+ * This class is a batch replay: one tag written to many cards back to back.
+ * It holds the data to write, copied once for all cards, and the tally of the
+ * cards written so far.
+ * 
+ * Each card is written with MifareIO.write(Tag, boolean). Nothing but the data
+ * is shared: the keys for a card are planned from its own access conditions,
+ * which a blank card and a card written before don't share.
+ * 
+ * Instances are immutable, recordCard() returns the updated tally.
+ */
+public final class BatchReplay {
+    private final Tag mTag;
+    private final long mStarted;
+    private final int mSucceeded;
+    private final int mFailed;
+    private final long mWriteMillis;
+    private final long mElapsedMillis;
+    private final int mSkipped;
+    private final byte[] mFailedUID;
+
+    /**
+     * Start a batch replay of a tag.
+     * 
+     * @param t
+     *            The tag to write to every card
+     */
+    public BatchReplay(Tag t) {
+        this(new Tag(t), System.currentTimeMillis(), 0, 0, 0, 0, 0, null);
+    }
+
+    private BatchReplay(Tag t, long started, int succeeded, int failed, long writeMillis,
+            long elapsedMillis, int skipped, byte[] failedUID) {
+        mTag = t;
+        mStarted = started;
+        mSucceeded = succeeded;
+        mFailed = failed;
+        mWriteMillis = writeMillis;
+        mElapsedMillis = elapsedMillis;
+        mSkipped = skipped;
+        mFailedUID = failedUID;
+    }
+
+    /**
+     * @return The tag to write, must not be changed
+     */
+    public Tag getTag() {
+        return mTag;
+    }
+
+    /**
+     * @return true if both are tallies of the same batch
+     */
+    public boolean isSameBatch(BatchReplay other) {
+        return other != null && other.mTag == mTag;
+    }
+
+    /**
+     * @return true if the card is tapped again after its write failed, so it
+     *         may already hold part of the data
+     */
+    public boolean isRetry(byte[] uid) {
+        return mFailedUID != null && Arrays.equals(mFailedUID, uid);
+    }
+
+    /**
+     * Count a card written, or that failed to be written.
+     * 
+     * @param uid
+     *            The UID of the card
+     * @param succeeded
+     *            true if the card was written
+     * @param writeMillis
+     *            The time spent on the card, in milliseconds
+     * @param skipped
+     *            The blocks of the card that already matched
+     * @return The updated tally
+     */
+    public BatchReplay recordCard(byte[] uid, boolean succeeded, long writeMillis, int skipped) {
+        return new BatchReplay(mTag, mStarted, mSucceeded + (succeeded ? 1 : 0), mFailed + (succeeded ? 0 : 1),
+                mWriteMillis + writeMillis, System.currentTimeMillis() - mStarted, mSkipped + skipped,
+                succeeded ? null : uid);
+    }
+
+    public int getSucceeded() {
+        return mSucceeded;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return The blocks that already matched and weren't written, over all
+     *         cards
+     */
+    public int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * @return The average time spent writing a card, in milliseconds, or 0 if
+     *         no card was tapped yet
+     */
+    public long getAverageMillis() {
+        int cards = mSucceeded + mFailed;
+        return cards > 0 ? mWriteMillis / cards : 0;
+    }
+
+    /**
+     * @return The cards written per minute, from the start of the batch to the
+     *         last card
+     */
+    public float getCardsPerMinute() {
+        return mElapsedMillis > 0 ? mSucceeded * 60000f / mElapsedMillis : 0;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+import android.nfc.tech.MifareClassic;
+
+public class BatchWriteMifareTask extends MifareTask<Void> {
+    private BatchReplay mBatch;
+    private long mMillis;
+    private byte[] mUID;
+    private int mSkipped;
+
+    public BatchWriteMifareTask(DomainState state, TaskFragment fragment) {
+        super(state, fragment);
+    }
+
+    @Override
+    protected Void processMifareTag(MifareClassic mfTag) throws IOException {
+        long start = System.nanoTime();
+        DomainState.Snapshot state = getDomainState().getSnapshot();
+        mBatch = state.getBatch();
+        if (mBatch == null)
+            throw new IOException("No batch replay");
+
+        try {
+            // The data is shared by all cards of the batch, the keys are
+            // planned from each card. A fresh card is written blindly, the
+            // difference is only worth reading when a card that failed
+            // partway is tapped again.
+            mUID = mfTag.getTag().getId();
+            MifareIO mio = new MifareIO(mfTag, state.getKeys(), this);
+            mio.setCancellationToken(getCancellationToken());
+            mSkipped = mio.write(mBatch.getTag(), mBatch.isRetry(mUID));
+            return null; // Void return
+        } finally {
+            mMillis = (System.nanoTime() - start) / 1000000;
+        }
+    }
+
+    @Override
+    protected void postProcessResult(Void v) {
+        // Stay in replay for the next card
+        DomainState ds = getDomainState();
+        if (ds != null && mBatch != null)
+            ds.recordBatchCard(mBatch, mUID, Error() == null, mMillis, mSkipped);
+    }
+}
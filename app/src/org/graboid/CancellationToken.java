@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+/**
+ * This class signals a running tag operation to stop. MifareIO checks the
+ * token before each block, so a cancelled operation gives up the tag within
+ * one block.
+ */
+public class CancellationToken {
+    private volatile boolean mCancelled;
+
+    /**
+     * Ask the operation to stop. May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws IOException
+     *             If the operation was cancelled
+     */
+    public void check() throws IOException {
+        if (mCancelled)
+            throw new IOException("Cancelled");
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * This class reads and writes files made of independently encrypted chunks,
+ * using AES in GCM mode. Every chunk is authenticated and can be decrypted or
+ * re-encrypted on its own, e.g. one chunk per tag sector.
+ * 
+ * The file starts with a header: MAGIC, VERSION, a random file id, the chunk
+ * count and the size of each chunk record. A record is a random nonce followed
+ * by the cipher text of the chunk index, the chunk count, the file id and the
+ * chunk data. These are checked on decryption, so chunks can't be reordered,
+ * dropped or moved between files encrypted with the same key.
+ */
+public class CryptoContainer {
+    private static final int MAGIC = 0x47434346; // "GCCF"
+    private static final int VERSION = 2;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 16;
+    private static final int MAX_CHUNKS = 1024;
+
+    private SecretKey mSecretKey;
+    private Cipher mCipher;
+
+    // The file id and record sizes from the header of a container
+    private static class Header {
+        long fileId;
+        int[] records;
+    }
+
+    /**
+     * @param key
+     *            The AES key, see SessionKey
+     * @throws Exception
+     */
+    public CryptoContainer(SecretKey key) throws Exception {
+        assert (key != null);
+        mSecretKey = key;
+        mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /**
+     * @return true if the file in the channel is a container, false if it is
+     *         something else, e.g. a CryptoIO stream
+     * @throws IOException
+     */
+    public static boolean isContainer(FileChannel in) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining()) {
+            if (in.read(magic, magic.position()) < 0)
+                return false;
+        }
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Encrypt chunks and write them as a new container.
+     * 
+     * @param out
+     *            The channel to write to, at its start
+     * @param chunks
+     *            The chunk data, between the position and limit of each buffer
+     * @throws Exception
+     */
+    public synchronized void write(FileChannel out, ByteBuffer[] chunks) throws Exception {
+        assert (chunks.length > 0 && chunks.length <= MAX_CHUNKS);
+
+        int size = headerSize(chunks.length);
+        for (ByteBuffer chunk : chunks)
+            size += recordSize(chunk.remaining());
+
+        long fileId = ByteBuffer.wrap(CryptoIO.makeNonce(8)).getLong();
+
+        ByteBuffer file = ByteBuffer.allocate(size);
+        file.putInt(MAGIC);
+        file.putInt(VERSION);
+        file.putLong(fileId);
+        file.putInt(chunks.length);
+        for (ByteBuffer chunk : chunks)
+            file.putInt(recordSize(chunk.remaining()));
+
+        for (int i = 0; i < chunks.length; ++i)
+            encrypt(i, chunks.length, fileId, chunks[i].duplicate(), file);
+
+        file.flip();
+        while (file.hasRemaining())
+            out.write(file);
+    }
+
+    /**
+     * Read and decrypt all the chunks of a container.
+     * 
+     * @param in
+     *            The channel to read from
+     * @return The chunk data, one buffer per chunk
+     * @throws Exception
+     *             If the file isn't a valid container or fails authentication
+     */
+    public synchronized ByteBuffer[] read(FileChannel in) throws Exception {
+        Header header = readHeader(in);
+        int[] records = header.records;
+        int offset = headerSize(records.length);
+
+        ByteBuffer file = ByteBuffer.allocate((int) in.size() - offset);
+        readFully(in, file, offset);
+        file.flip();
+
+        // Decrypt each record in place
+        ByteBuffer[] chunks = new ByteBuffer[records.length];
+        int position = 0;
+        for (int i = 0; i < records.length; ++i) {
+            file.limit(position + records[i]).position(position);
+            chunks[i] = decrypt(i, records.length, header.fileId, file);
+            position += records[i];
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Read and decrypt a single chunk of a container.
+     * 
+     * @param in
+     *            The channel to read from
+     * @param index
+     *            The chunk to read
+     * @return The chunk data
+     * @throws Exception
+     *             If the file isn't a valid container or fails authentication
+     */
+    public synchronized ByteBuffer readChunk(FileChannel in, int index) throws Exception {
+        Header header = readHeader(in);
+        int[] records = header.records;
+        if (index < 0 || index >= records.length)
+            throw new IOException("No such chunk");
+
+        ByteBuffer record = ByteBuffer.allocate(records[index]);
+        readFully(in, record, recordOffset(records, index));
+        record.flip();
+
+        return decrypt(index, records.length, header.fileId, record);
+    }
+
+    /**
+     * Encrypt a chunk with a new nonce and write it over the current one. The
+     * other chunks are left untouched.
+     * 
+     * @param file
+     *            The channel of the container, opened for reading and writing
+     * @param index
+     *            The chunk to replace
+     * @param chunk
+     *            The new chunk data, the same size as the current data
+     * @throws Exception
+     */
+    public synchronized void rewriteChunk(FileChannel file, int index, ByteBuffer chunk) throws Exception {
+        Header header = readHeader(file);
+        int[] records = header.records;
+        if (index < 0 || index >= records.length)
+            throw new IOException("No such chunk");
+        if (recordSize(chunk.remaining()) != records[index])
+            throw new IOException("Chunk size mismatch");
+
+        ByteBuffer record = ByteBuffer.allocate(records[index]);
+        encrypt(index, records.length, header.fileId, chunk.duplicate(), record);
+        record.flip();
+
+        long offset = recordOffset(records, index);
+        while (record.hasRemaining())
+            offset += file.write(record, offset);
+    }
+
+    // Encrypt a chunk into a record at the position of the output buffer
+    private void encrypt(int index, int count, long fileId, ByteBuffer chunk, ByteBuffer out) throws Exception {
+        byte[] nonce = CryptoIO.makeNonce(NONCE_SIZE);
+        mCipher.init(Cipher.ENCRYPT_MODE, mSecretKey, gcmSpec(nonce));
+        out.put(nonce);
+
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        header.putInt(index).putInt(count).putLong(fileId).flip();
+        mCipher.update(header, out);
+        mCipher.doFinal(chunk, out);
+    }
+
+    // Decrypt the record between the position and limit of a buffer in place,
+    // and return a view of the chunk data
+    private ByteBuffer decrypt(int index, int count, long fileId, ByteBuffer record) throws Exception {
+        if (record.remaining() < recordSize(0))
+            throw new IOException("Invalid container; short record");
+
+        int start = record.position();
+        byte[] nonce = new byte[NONCE_SIZE];
+        record.get(nonce);
+        mCipher.init(Cipher.DECRYPT_MODE, mSecretKey, gcmSpec(nonce));
+
+        ByteBuffer clear = record.duplicate();
+        clear.position(start);
+        clear.limit(record.limit());
+        mCipher.doFinal(record, clear);
+
+        clear.flip();
+        clear.position(start);
+        if (clear.getInt() != index || clear.getInt() != count || clear.getLong() != fileId)
+            throw new IOException("Invalid container; misplaced chunk");
+
+        return clear.slice();
+    }
+
+    // Read and check the header
+    private static Header readHeader(FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize(0));
+        readFully(in, header, 0);
+        header.flip();
+
+        if (header.getInt() != MAGIC)
+            throw new IOException("Invalid container");
+        if (header.getInt() != VERSION)
+            throw new IOException("Unsupported container version");
+
+        long fileId = header.getLong();
+        int count = header.getInt();
+        if (count <= 0 || count > MAX_CHUNKS)
+            throw new IOException("Invalid container; illegal chunk count");
+
+        ByteBuffer sizes = ByteBuffer.allocate(4 * count);
+        readFully(in, sizes, headerSize(0));
+        sizes.flip();
+
+        long total = headerSize(count);
+        int[] records = new int[count];
+        for (int i = 0; i < count; ++i) {
+            records[i] = sizes.getInt();
+            if (records[i] < recordSize(0))
+                throw new IOException("Invalid container; illegal record size");
+            total += records[i];
+        }
+        if (total != in.size())
+            throw new IOException("Invalid container; size mismatch");
+
+        Header h = new Header();
+        h.fileId = fileId;
+        h.records = records;
+        return h;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer dest, long offset) throws IOException {
+        while (dest.hasRemaining()) {
+            int read = in.read(dest, offset);
+            if (read < 0)
+                throw new IOException("Invalid container; underflow");
+            offset += read;
+        }
+    }
+
+    private static int headerSize(int count) {
+        return 3 * 4 + 8 + 4 * count;
+    }
+
+    private static int recordSize(int length) {
+        return NONCE_SIZE + CHUNK_HEADER_SIZE + length + TAG_SIZE;
+    }
+
+    private static long recordOffset(int[] records, int index) {
+        long offset = headerSize(records.length);
+        for (int i = 0; i < index; ++i)
+            offset += records[i];
+        return offset;
+    }
+
+    // GCMParameterSpec is API 19, older versions take the nonce as an IV
+    private static AlgorithmParameterSpec gcmSpec(byte[] nonce) {
+        try {
+            Class<?> spec = Class.forName("javax.crypto.spec.GCMParameterSpec");
+            return (AlgorithmParameterSpec) spec.getConstructor(int.class, byte[].class).newInstance(TAG_SIZE * 8,
+                    nonce);
+        } catch (Exception e) {
+            return new IvParameterSpec(nonce);
+        }
+    }
+}
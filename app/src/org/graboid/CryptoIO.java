@@ -22,6 +22,8 @@ package org.graboid;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
 
@@ -42,8 +44,8 @@ public class CryptoIO {
     public static final int SALT_SIZE = 8;
 
     private static final int IV_SIZE = 16;
+    private static final int BLOCK_SIZE = 16;
     private static final int BUFSIZE = 1024;
-    private static final int KEY_ITERATIONS = 100;
     private static final int KEY_LENGTH = 256;
 
     private static SecureRandom prng;
@@ -59,14 +61,35 @@ public class CryptoIO {
      * @throws Exception
      */
     public CryptoIO(char[] password, byte[] salt) throws Exception {
+        this(deriveKey(password, KeyDerivation.legacy(salt)));
+    }
+
+    /**
+     * Create a new crypto helper object, configured with a derived key.
+     * @param key The AES key, see deriveKey() and SessionKey
+     * @throws Exception
+     */
+    public CryptoIO(SecretKey key) throws Exception {
+        assert (key != null);
+        mSecretKey = key;
+        mCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    }
+
+    /**
+     * Derive the AES key from a password. This is slow by design.
+     * @param password The password
+     * @param kdf The algorithm, iteration count and salt
+     * @return The AES key
+     * @throws Exception
+     */
+    public static SecretKey deriveKey(char[] password, KeyDerivation kdf) throws Exception {
         assert (password != null && password.length > 0);
-        assert (salt != null && salt.length == SALT_SIZE);
+        assert (kdf != null);
 
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        KeySpec keySpec = new PBEKeySpec(password, salt, KEY_ITERATIONS, KEY_LENGTH);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(kdf.getAlgorithm());
+        KeySpec keySpec = new PBEKeySpec(password, kdf.getSalt(), kdf.getIterations(), KEY_LENGTH);
         SecretKey secret = factory.generateSecret(keySpec);
-        mSecretKey = new SecretKeySpec(secret.getEncoded(), "AES");
-        mCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        return new SecretKeySpec(secret.getEncoded(), "AES");
     }
 
     /**
@@ -75,7 +98,7 @@ public class CryptoIO {
      * @param out Cipher text output stream
      * @throws Exception
      */
-    public void encrypt(InputStream in, OutputStream out) throws Exception {
+    public synchronized void encrypt(InputStream in, OutputStream out) throws Exception {
 
         // Gen new IV
         byte[] iv = makeIV();
@@ -96,7 +119,7 @@ public class CryptoIO {
      * @param out Clear text output stream
      * @throws Exception
      */
-    public void decrypt(InputStream in, OutputStream out) throws Exception {
+    public synchronized void decrypt(InputStream in, OutputStream out) throws Exception {
 
         // Read IV from front of the stream
         byte[] iv = new byte[IV_SIZE];
@@ -110,6 +133,80 @@ public class CryptoIO {
         processStream(new CipherInputStream(in, mCipher), out);
     }
 
+    /**
+     * Allocate a buffer to serialize clear text into, so that it can be
+     * encrypted in place with encrypt(ByteBuffer, FileChannel). The clear text
+     * goes from the buffer position to at most size bytes further.
+     * @param size The maximum size of the clear text
+     * @return A buffer positioned after the room for the IV
+     */
+    public static ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(IV_SIZE + size + BLOCK_SIZE);
+        buffer.position(IV_SIZE);
+        buffer.limit(IV_SIZE + size);
+        return buffer;
+    }
+
+    /**
+     * Encrypt the clear text in a buffer in place and write it to a channel.
+     * @param clear A buffer from allocate(), clear text up to its position
+     * @param out Cipher text output channel
+     * @throws Exception
+     */
+    public synchronized void encrypt(ByteBuffer clear, FileChannel out) throws Exception {
+        byte[] data = clear.array();
+        int end = clear.position();
+
+        // Gen new IV and configure the cipher for encryption
+        byte[] iv = makeIV();
+        mCipher.init(Cipher.ENCRYPT_MODE, mSecretKey, new IvParameterSpec(iv));
+
+        // Encrypt in place, the cipher text is written over the clear text
+        ByteBuffer input = ByteBuffer.wrap(data, IV_SIZE, end - IV_SIZE);
+        ByteBuffer output = ByteBuffer.wrap(data, IV_SIZE, data.length - IV_SIZE);
+        mCipher.doFinal(input, output);
+
+        // IV in front of the cipher text
+        System.arraycopy(iv, 0, data, 0, IV_SIZE);
+
+        ByteBuffer file = ByteBuffer.wrap(data, 0, output.position());
+        while (file.hasRemaining())
+            out.write(file);
+    }
+
+    /**
+     * Read a whole channel and decrypt it in place.
+     * @param in Cipher text input channel
+     * @return A buffer with the clear text between its position and limit
+     * @throws Exception
+     */
+    public synchronized ByteBuffer decrypt(FileChannel in) throws Exception {
+        long size = in.size();
+        if (size < IV_SIZE || size > Integer.MAX_VALUE)
+            throw new IOException("Illegal cipher text size");
+
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining()) {
+            if (in.read(data) < 0)
+                throw new IOException("Cipher text underflow");
+        }
+        data.flip();
+
+        // Read IV from front of the data and configure the cipher for
+        // decryption
+        byte[] iv = new byte[IV_SIZE];
+        data.get(iv);
+        mCipher.init(Cipher.DECRYPT_MODE, mSecretKey, new IvParameterSpec(iv));
+
+        // Decrypt in place, the clear text is written over the IV and cipher
+        // text
+        ByteBuffer clear = ByteBuffer.wrap(data.array());
+        mCipher.doFinal(data, clear);
+        clear.flip();
+
+        return clear;
+    }
+
     private void processStream(InputStream in, OutputStream out) throws IOException {
         int read = 0;
         while ((read = in.read(mBuf)) >= 0)
@@ -117,15 +214,31 @@ public class CryptoIO {
         out.close();
     }
 
+    /**
+     * Seed the random generator ahead of the first encryption, seeding is
+     * slow on some devices.
+     */
+    public static void warmUp() throws Exception {
+        genRandomBytes(IV_SIZE);
+    }
+
     public static byte[] makeSalt() throws Exception {
         return genRandomBytes(SALT_SIZE);
     }
 
+    public static byte[] makeSalt(int size) throws Exception {
+        return genRandomBytes(size);
+    }
+
+    public static byte[] makeNonce(int size) throws Exception {
+        return genRandomBytes(size);
+    }
+
     private static byte[] makeIV() throws Exception {
         return genRandomBytes(IV_SIZE);
     }
 
-    private static byte[] genRandomBytes(int count) throws Exception {
+    private static synchronized byte[] genRandomBytes(int count) throws Exception {
         if (prng == null)
             prng = SecureRandom.getInstance("SHA1PRNG");
 
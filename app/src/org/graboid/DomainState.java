@@ -20,204 +20,759 @@
 package org.graboid;
 
 import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
-import android.os.Parcel;
-import android.os.Parcelable;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
-public class DomainState implements Parcelable {
+/**
+ * The state of the application: the current tag, keys and mode.
+ * 
+ * The tag, keys, checkpoint and mode are held in an immutable Snapshot that
+ * is replaced as a whole with compare-and-set, so a worker thread reading
+ * getSnapshot() sees a consistent state without locking. Each change notifies
+ * the listeners once, on the main thread.
+ * 
+ * The saved instance state is a small handle to the state, which is retained
+ * in the process, see saveInstanceState().
+ */
+public class DomainState {
 
     private List<IDomainStateListener> mListeners = new ArrayList<IDomainStateListener>();
 
     public static final String BUNDLE_TAG = "GRABOID_DOMAIN_STATE";
+    private static final String BUNDLE_STATE_TAG = "GRABOID_DOMAIN_STATE_MODE";
+
+    // The state saved last, restored as is while the process lives
+    private static DomainState sRetained;
+    private static final Random sHandles = new Random();
 
     public enum State {
-        CLEAN, RECORDING, LOADED, REPLAYING
+        LOADING, CLEAN, RECORDING, LOADED, REPLAYING
+    }
+
+    /**
+     * An immutable view of the tag, keys, checkpoint and mode.
+     */
+    public static final class Snapshot {
+        private final State mState;
+        private final Tag mTag;
+        private final KeyChain mKeys;
+        private final SessionCheckpoint mCheckpoint;
+        private final BatchReplay mBatch;
+
+        private Snapshot(State state, Tag tag, KeyChain keys, SessionCheckpoint checkpoint) {
+            this(state, tag, keys, checkpoint, null);
+        }
+
+        private Snapshot(State state, Tag tag, KeyChain keys, SessionCheckpoint checkpoint, BatchReplay batch) {
+            mState = state;
+            mTag = tag;
+            mKeys = keys;
+            mCheckpoint = checkpoint;
+            mBatch = batch;
+        }
+
+        public State getState() {
+            return mState;
+        }
+
+        public Tag getTag() {
+            return mTag;
+        }
+
+        public KeyChain getKeys() {
+            return mKeys;
+        }
+
+        public SessionCheckpoint getCheckpoint() {
+            return mCheckpoint;
+        }
+
+        /**
+         * @return The batch replay, if replaying in batch mode, or null
+         */
+        public BatchReplay getBatch() {
+            return mBatch;
+        }
+
+        private Snapshot withState(State state) {
+            return new Snapshot(state, mTag, mKeys, mCheckpoint);
+        }
+
+        private Snapshot withCheckpoint(SessionCheckpoint checkpoint) {
+            return new Snapshot(mState, mTag, mKeys, checkpoint, mBatch);
+        }
+    }
+
+    // A change of the snapshot. It may be applied again if another thread
+    // changed the snapshot meanwhile, so it must not have side effects.
+    // Returns null to leave the snapshot unchanged.
+    private interface ITransition {
+        Snapshot apply(Snapshot s);
     }
 
-    private Tag mTag = null;
-    private KeyChain mKeys = null;
-    private State mState;
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>();
+    private volatile KeyDictionary mDictionary = null;
+    private volatile KeyBindings mKeyBindings = null;
+
+    // The stored keys while selectKeys() overrides them with keys bound to the
+    // card, null otherwise. Bound keys are only used for the session, never
+    // stored as the keys.
+    private volatile KeyChain mStoredKeys = null;
+
+    // Keys set since the last tap win over the keys bound to the card
+    private volatile boolean mKeysSet = false;
     private char[] mPasswd;
+    private final long mHandle = sHandles.nextLong();
+
+    // The mode to return to once loaded, when restored after the process
+    // was gone
+    private State mResumeState;
+
+    private File mWorkingDir;
+    private Future<FileIO> mFileIO;
+    private PersistenceQueue mStore;
+    private Handler mHandler;
+
+    // Undo a tag or key chain that couldn't be saved, unless replaced since
+    private final PersistenceQueue.IPersistenceListener mStoreListener = new PersistenceQueue.IPersistenceListener() {
+        public void tagSaveFailed(Tag t) {
+            if (t == getTag())
+                clearTag();
+        }
 
-    private FileIO mFileIO;
+        public void keyChainSaveFailed(KeyChain k) {
+            if (k == getKeys() || k == mStoredKeys)
+                forgetKeys();
+        }
+    };
+
+    // Starts in the LOADING state, listeners are notified once the stored keys
+    // and tag are loaded in the background.
+    public DomainState(char[] password, File extFileDir) {
+        this(password, extFileDir, null);
+    }
 
-    public DomainState(char[] password, File extFileDir) throws Exception {
+    private DomainState(char[] password, File extFileDir, State resumeState) {
         assert (password != null);
         mPasswd = password;
+        mWorkingDir = extFileDir;
+        mResumeState = resumeState;
+        mSnapshot.set(new Snapshot(State.LOADING, null, null, null));
 
-        mFileIO = new FileIO(mPasswd, extFileDir);
+        load(true);
+    }
 
-        if (mFileIO.hasKeyChain())
-            mKeys = mFileIO.loadKeyChain();
+    // What was found in storage
+    private static class Stored {
+        KeyChain keys;
+        Tag tag;
+        KeyDictionary dictionary;
+        KeyBindings bindings;
+    }
 
-        if (mFileIO.hasTag()) {
-            mTag = mFileIO.loadTag();
-            mState = State.LOADED;
-        } else {
-            mState = State.CLEAN;
+    // Set up the file interface and load the stored state on the persistence
+    // thread. The key derivation runs there as well. The keys and the tag are
+    // only loaded when starting from scratch, the dictionary is always mapped
+    // (it can be too large for a parcel) and the key bindings always loaded.
+    private void load(final boolean keysAndTag) {
+        final char[] password = mPasswd;
+        final File workingDir = mWorkingDir;
+
+        mHandler = new Handler(Looper.getMainLooper());
+        mFileIO = PersistenceQueue.submit(new Callable<FileIO>() {
+            public FileIO call() throws Exception {
+                FileIO fileIO = new FileIO(password, workingDir);
+                CryptoIO.warmUp();
+                return fileIO;
+            }
+        });
+        mStore = new PersistenceQueue(mFileIO, mStoreListener);
+
+        PersistenceQueue.submit(new Callable<Void>() {
+            public Void call() {
+                final Stored stored = new Stored();
+                try {
+                    FileIO fileIO = mFileIO.get();
+
+                    // A file that can't be loaded is left out
+                    if (keysAndTag && fileIO.hasKeyChain())
+                        stored.keys = tryLoadKeyChain(fileIO);
+                    if (keysAndTag && fileIO.hasTag())
+                        stored.tag = tryLoadTag(fileIO);
+                    if (fileIO.hasKeyDictionary())
+                        stored.dictionary = tryLoadKeyDictionary(fileIO);
+                    stored.bindings = tryLoadKeyBindings(fileIO);
+                } catch (Exception e) {
+                    // No storage, see hasStorage()
+                }
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        loaded(stored);
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    private static KeyChain tryLoadKeyChain(FileIO fileIO) {
+        try {
+            return fileIO.loadKeyChain();
+        } catch (Exception e) {
+            return null;
         }
     }
 
-    public void activate() {
-        if (!hasKeys())
-            return;
+    private static Tag tryLoadTag(FileIO fileIO) {
+        try {
+            return fileIO.loadTag();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static KeyDictionary tryLoadKeyDictionary(FileIO fileIO) {
+        try {
+            return fileIO.loadKeyDictionary();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static KeyBindings tryLoadKeyBindings(FileIO fileIO) {
+        try {
+            return fileIO.loadKeyBindings();
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-        switch (mState) {
-        case CLEAN:
-            mState = State.RECORDING;
-            break;
-        case RECORDING:
-            mState = State.CLEAN;
-            break;
-        case LOADED:
-            mState = State.REPLAYING;
-            break;
-        case REPLAYING:
-            mState = State.LOADED;
-            break;
-        default:
-            break;
+    // Apply what was loaded, on the main thread. Changes made while loading
+    // win over the stored state.
+    private void loaded(final Stored stored) {
+        if (mDictionary == null)
+            mDictionary = stored.dictionary;
+
+        if (stored.bindings != null) {
+            if (mKeyBindings != null) {
+                stored.bindings.putAll(mKeyBindings);
+                mStore.saveKeyBindings(stored.bindings);
+            }
+            mKeyBindings = stored.bindings;
+        } else if (mKeyBindings == null) {
+            mKeyBindings = new KeyBindings();
         }
 
+        swap(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (s.mState != State.LOADING)
+                    return null;
+                return new Snapshot(loadedState(stored), stored.tag, stored.keys, s.mCheckpoint);
+            }
+        });
+
+        // The dictionary and the bindings changed either way
         notifyListeners();
     }
 
+    // The mode after loading: recording or replaying again if that was the
+    // mode before the process was gone and it still applies
+    private State loadedState(Stored stored) {
+        State state = stored.tag != null ? State.LOADED : State.CLEAN;
+        State active = stored.tag != null ? State.REPLAYING : State.RECORDING;
+        if (stored.keys != null && mResumeState == active)
+            return active;
+        return state;
+    }
+
+    /**
+     * @return false if the stored state can't be accessed, e.g. the external
+     *         storage is missing
+     */
+    public boolean hasStorage() {
+        if (!mFileIO.isDone())
+            return true;
+
+        try {
+            mFileIO.get();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public void activate() {
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (s.mKeys == null)
+                    return null;
+
+                switch (s.mState) {
+                case CLEAN:
+                    return s.withState(State.RECORDING);
+                case RECORDING:
+                    return new Snapshot(State.CLEAN, s.mTag, s.mKeys, null);
+                case LOADED:
+                    return s.withState(State.REPLAYING);
+                case REPLAYING:
+                    return new Snapshot(State.LOADED, s.mTag, s.mKeys, null);
+                default:
+                    return null;
+                }
+            }
+        });
+    }
+
     // Transition state from an active reading or writing state to a non active
     // state.
     public void deActivate() {
-        switch (mState) {
-        case RECORDING:
-            mState = State.CLEAN;
-            break;
-        case REPLAYING:
-            mState = State.LOADED;
-            break;
-        default:
-            break;
-        }
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                switch (s.mState) {
+                case RECORDING:
+                    return s.withState(State.CLEAN);
+                case REPLAYING:
+                    return s.withState(State.LOADED);
+                default:
+                    return null;
+                }
+            }
+        });
+    }
 
-        notifyListeners();
+    /**
+     * @return The current state, consistent across threads
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot.get();
     }
 
     public State getState() {
-        return mState;
+        return mSnapshot.get().mState;
     }
 
     public boolean hasKeys() {
-        return mKeys != null;
+        return getKeys() != null;
     }
 
+    // Clear the keys and the tag, and the keys bound to cards
     public void clearKeys() {
-        clearTag();
-        mKeys = null;
-        mFileIO.deleteKeyChain();
-        notifyListeners();
+        forgetKeys();
+        if (mKeyBindings == null)
+            mKeyBindings = new KeyBindings();
+        mKeyBindings.clear();
+        mStore.saveKeyBindings(mKeyBindings);
+    }
+
+    private void forgetKeys() {
+        mStoredKeys = null;
+        mKeysSet = false;
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                return new Snapshot(State.CLEAN, null, null, null);
+            }
+        });
+        mStore.deleteTag();
+        mStore.deleteKeyChain();
     }
 
     public KeyChain getKeys() {
-        return mKeys;
+        return mSnapshot.get().mKeys;
     }
 
-    public boolean setKeys(KeyChain newKeys) {
-        clearKeys();
-        mKeys = newKeys;
+    // Use new keys, clearing the tag. They are saved in the background, the
+    // returned future tells if the save succeeded. The keys are cleared if it
+    // failed.
+    public Future<Boolean> setKeys(final KeyChain newKeys) {
+        mStoredKeys = null;
+        mKeysSet = true;
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                return new Snapshot(State.CLEAN, null, newKeys, null);
+            }
+        });
+        mStore.deleteTag();
+        return mStore.saveKeyChain(newKeys);
+    }
 
-        try {
-            mFileIO.saveKeyChain(mKeys);
-        } catch (Exception e) {
-            clearKeys();
+    // Switch to the key chain bound to a card for the session, or back to the
+    // stored keys if none is bound, unless keys were set since the last tap.
+    // The tag is kept, and the stored keys aren't changed. Returns true if
+    // the bound keys are used.
+    public boolean selectKeys(byte[] uid, int atqa, int sak) {
+        if (mKeysSet) {
+            mKeysSet = false;
             return false;
-        } finally {
-            notifyListeners();
         }
 
+        KeyBindings bindings = mKeyBindings;
+        final KeyChain bound = bindings != null ? bindings.find(uid, atqa, sak) : null;
+        if (bound == null) {
+            useStoredKeys();
+            return false;
+        }
+
+        KeyChain stored = mStoredKeys != null ? mStoredKeys : getKeys();
+        final KeyChain selected = new KeyChain(bound);
+        Snapshot applied = update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (selected.equals(s.mKeys))
+                    return null;
+                return new Snapshot(s.mState, s.mTag, selected, s.mCheckpoint, s.mBatch);
+            }
+        });
+        if (applied != null)
+            mStoredKeys = stored;
         return true;
     }
 
+    // The keys failed with a card other than by losing it. If selectKeys()
+    // switched to keys bound to the card, go back to the stored keys for the
+    // next tap.
+    public void keysFailed() {
+        if (mStoredKeys == null)
+            return;
+
+        useStoredKeys();
+        mKeysSet = true;
+    }
+
+    // End the override of the stored keys by bound keys, if any
+    private void useStoredKeys() {
+        final KeyChain stored = mStoredKeys;
+        if (stored == null)
+            return;
+
+        mStoredKeys = null;
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                return new Snapshot(s.mState, s.mTag, stored, s.mCheckpoint, s.mBatch);
+            }
+        });
+    }
+
+    // Bind the current keys to the cards with a UID prefix, ATQA and SAK (see
+    // KeyBindings), so selectKeys() picks them for those cards.
+    public Future<Boolean> bindKeys(byte[] uidPrefix, int atqa, int sak) {
+        KeyChain keys = getKeys();
+        assert (keys != null);
+
+        // Merged with the stored bindings if they are still loading
+        if (mKeyBindings == null)
+            mKeyBindings = new KeyBindings();
+        mKeyBindings.bind(uidPrefix, atqa, sak, keys);
+
+        return mStore.saveKeyBindings(mKeyBindings);
+    }
+
+    // Bind the current keys to a card they worked with, unless the same keys
+    // are bound to it already
+    public void rememberKeys(byte[] uid, int atqa, int sak) {
+        KeyChain keys = getKeys();
+        if (keys == null)
+            return;
+
+        KeyChain bound = mKeyBindings != null ? mKeyBindings.find(uid, atqa, sak) : null;
+        if (!keys.equals(bound))
+            bindKeys(uid, KeyBindings.ANY, KeyBindings.ANY);
+    }
+
+    public boolean hasDictionary() {
+        return mDictionary != null;
+    }
+
+    public KeyDictionary getDictionary() {
+        return mDictionary;
+    }
+
+    // Compile a text key list into the dictionary in the background,
+    // replacing the current one once compiled. The listener is called on the
+    // main thread.
+    public void importDictionary(final InputStream in, final IImportListener listener) {
+        final Future<FileIO> fileIO = mFileIO;
+        PersistenceQueue.submit(new Callable<Void>() {
+            public Void call() {
+                KeyDictionary compiled;
+                try {
+                    compiled = fileIO.get().importKeyDictionary(in);
+                } catch (Exception e) {
+                    // The current dictionary is only replaced once compiled
+                    compiled = null;
+                }
+
+                final KeyDictionary dictionary = compiled;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (dictionary != null) {
+                            mDictionary = dictionary;
+                            notifyListeners();
+                        }
+                        listener.importFinished(dictionary != null);
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    // Use keys recovered with the dictionary, and learn which keys hit for the
+    // card family.
+    public Future<Boolean> setRecoveredKeys(String family, KeyChain newKeys) {
+        if (mDictionary != null) {
+            mDictionary.recordHits(family, newKeys);
+            mStore.saveKeyStatistics(mDictionary);
+        }
+
+        return setKeys(newKeys);
+    }
+
+    /**
+     * @return The checkpoint of an interrupted read or write, or null
+     */
+    public SessionCheckpoint getCheckpoint() {
+        return mSnapshot.get().mCheckpoint;
+    }
+
+    // Keep the progress of an interrupted read or write until the same tag is
+    // tapped again. Pass null when the operation completed. Listeners are not
+    // notified, the checkpoint isn't shown.
+    public void setCheckpoint(final SessionCheckpoint checkpoint) {
+        swap(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                return s.withCheckpoint(checkpoint);
+            }
+        });
+    }
+
     public boolean hasTag() {
-        return mTag != null;
+        return getTag() != null;
     }
 
     public void clearTag() {
-        mTag = null;
-        mFileIO.deleteTag();
-        mState = State.CLEAN;
-
-        notifyListeners();
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                return new Snapshot(State.CLEAN, null, s.mKeys, null);
+            }
+        });
+        mStore.deleteTag();
     }
 
     public Tag getTag() {
-        return mTag;
+        return mSnapshot.get().mTag;
     }
 
-    public boolean setTag(Tag tag) {
-        clearTag();
-        mTag = tag;
+    // Use a new tag, added to the dump library as the active dump. It is saved
+    // in the background, the returned future tells if the save succeeded. The
+    // tag is cleared if it failed.
+    public Future<Boolean> setTag(Tag tag) {
+        return useTag(tag, null, false);
+    }
 
-        try {
-            mFileIO.saveTag(mTag);
-        } catch (Exception e) {
-            clearTag();
+    // Make the ACL of the current tag permanent, see Tag.fuseACL(). The tag
+    // is replaced with a fused copy rather than changed in place, since
+    // snapshots holding it may be in use.
+    public boolean fuseACL() {
+        final Tag current = getTag();
+        if (current == null)
             return false;
-        } finally {
-            notifyListeners();
-        }
 
-        mState = State.LOADED;
+        final Tag fused = new Tag(current);
+        fused.fuseACL();
+        Snapshot applied = update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                // The batch replay writes the tag it was started with
+                if (s.mTag != current || s.mBatch != null)
+                    return null;
+                return new Snapshot(s.mState, fused, s.mKeys, s.mCheckpoint);
+            }
+        });
+        if (applied == null)
+            return false;
 
+        mStore.saveTag(fused);
         return true;
     }
 
-    // -- Parcelable impl --------------------------------------------
-
-    // Private ctor. for use in deserialization
-    private DomainState() {
+    // Make a tag the current one and save it, or only make its dump the active
+    // one if it is in the library already. If idleOnly it is only used if no
+    // tag is being read or written; returns null if it wasn't used.
+    private Future<Boolean> useTag(final Tag tag, DumpIndex.Entry entry, final boolean idleOnly) {
+        Snapshot applied = update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (idleOnly && s.mState != State.CLEAN && s.mState != State.LOADED)
+                    return null;
+                return new Snapshot(State.LOADED, tag, s.mKeys, null);
+            }
+        });
+        if (applied == null)
+            return null;
+        return entry != null ? mStore.selectTag(tag, entry) : mStore.saveTag(tag);
     }
 
-    @Override
-    public int describeContents() {
-        return 0;
+    // Replay the tag to many cards: stay in replay after each card, and write
+    // every card tapped without checking its UID. Ends when replay is
+    // deactivated. The tag is copied once for all cards.
+    public void startBatch() {
+        final Tag tag = getTag();
+        if (tag == null)
+            return;
+
+        final BatchReplay batch = new BatchReplay(tag);
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (s.mKeys == null || s.mTag != tag || (s.mState != State.LOADED && s.mState != State.REPLAYING))
+                    return null;
+                return new Snapshot(State.REPLAYING, s.mTag, s.mKeys, null, batch);
+            }
+        });
     }
 
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeParcelable(mTag, flags);
-        dest.writeParcelable(mKeys, flags);
-        dest.writeInt(mState.ordinal());
+    public BatchReplay getBatch() {
+        return mSnapshot.get().mBatch;
+    }
 
-        dest.writeInt(mPasswd.length);
-        dest.writeCharArray(mPasswd);
-        dest.writeString(mFileIO.getWorkingDir().getAbsolutePath());
+    // Count a card of a batch replay as written or failed, unless the batch
+    // ended meanwhile
+    public void recordBatchCard(final BatchReplay batch, final byte[] uid, final boolean succeeded,
+            final long millis, final int skipped) {
+        update(new ITransition() {
+            public Snapshot apply(Snapshot s) {
+                if (!batch.isSameBatch(s.mBatch))
+                    return null;
+                return new Snapshot(s.mState, s.mTag, s.mKeys, s.mCheckpoint,
+                        s.mBatch.recordCard(uid, succeeded, millis, skipped));
+            }
+        });
     }
 
-    public static final Parcelable.Creator<DomainState> CREATOR = new Parcelable.Creator<DomainState>() {
-        public DomainState createFromParcel(Parcel in) {
+    // List the dump library. Only the index is read.
+    public Future<List<DumpIndex.Entry>> getDumps() {
+        final Future<FileIO> fileIO = mFileIO;
+        return PersistenceQueue.submit(new Callable<List<DumpIndex.Entry>>() {
+            public List<DumpIndex.Entry> call() throws Exception {
+                return fileIO.get().loadDumpIndex().getEntries();
+            }
+        });
+    }
 
-            DomainState ds = new DomainState();
+    // Find the dumps of a tag in the library, oldest first. Only the index is
+    // read.
+    public Future<List<DumpIndex.Entry>> findDumps(byte[] uid) {
+        final Future<FileIO> fileIO = mFileIO;
+        final byte[] key = uid.clone();
+        return PersistenceQueue.submit(new Callable<List<DumpIndex.Entry>>() {
+            public List<DumpIndex.Entry> call() throws Exception {
+                return fileIO.get().loadDumpIndex().findByUID(key);
+            }
+        });
+    }
 
-            ds.mTag = in.readParcelable(Tag.class.getClassLoader());
-            ds.mKeys = in.readParcelable(KeyChain.class.getClassLoader());
-            ds.mState = State.values()[in.readInt()];
+    // Load a dump from the library in the background and make it the current
+    // tag, unless a tag is being read or written by then.
+    public Future<Tag> selectDump(final DumpIndex.Entry entry) {
+        final Future<FileIO> fileIO = mFileIO;
+        return PersistenceQueue.submit(new Callable<Tag>() {
+            public Tag call() throws Exception {
+                final Tag tag = fileIO.get().loadDump(entry);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        useTag(tag, entry, true);
+                    }
+                });
+                return tag;
+            }
+        });
+    }
 
-            char[] password = new char[in.readInt()];
-            in.readCharArray(password);
+    // Compare two dumps of the library, e.g. two reads of the same tag. The
+    // future yields the numbers of the blocks that differ.
+    public Future<int[]> diffDumps(final DumpIndex.Entry from, final DumpIndex.Entry to) {
+        final Future<FileIO> fileIO = mFileIO;
+        return PersistenceQueue.submit(new Callable<int[]>() {
+            public int[] call() throws Exception {
+                return fileIO.get().diffDumps(from, to);
+            }
+        });
+    }
 
-            File workingDir = new File(in.readString());
-            try {
-                ds.mFileIO = new FileIO(password, workingDir);
-            } catch (Exception e) {
+    // Remove a dump from the library. The current tag is not affected.
+    public Future<Void> deleteDump(final DumpIndex.Entry entry) {
+        final Future<FileIO> fileIO = mFileIO;
+        return PersistenceQueue.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fileIO.get().deleteDump(entry);
                 return null;
             }
+        });
+    }
 
-            return ds;
-        }
+    // Wipe the decrypted dumps and keys cached by the file interface. The
+    // current tag and keys are kept.
+    public void wipeCache() {
+        if (!mFileIO.isDone())
+            return;
 
-        public DomainState[] newArray(int size) {
-            return new DomainState[size];
+        try {
+            mFileIO.get().clearCache();
+        } catch (Exception e) {
+            // No storage, nothing cached
         }
-    };
+    }
+
+    // -- Instance state --------------------------------------------
+
+    /**
+     * Save a handle to this state, and retain the state in the process. The
+     * size of the saved state doesn't depend on the tag or the keys.
+     * 
+     * @param out
+     *            The bundle to save to, e.g. in onSaveInstanceState()
+     */
+    public void saveInstanceState(Bundle out) {
+        sRetained = this;
+        out.putLong(BUNDLE_TAG, mHandle);
+        out.putInt(BUNDLE_STATE_TAG, getState().ordinal());
+    }
+
+    /**
+     * Restore a state saved with saveInstanceState(). While the process lives
+     * it is the retained state itself. Otherwise the tag and keys are loaded
+     * from storage in the background, as by the constructor, and the mode is
+     * restored once loaded. An interrupted read or write isn't resumed then.
+     * 
+     * @param in
+     *            The bundle saved to
+     * @param password
+     *            The password of the stored state, for when it is loaded
+     * @param extFileDir
+     *            The directory of the stored state
+     * @return The restored state
+     */
+    public static DomainState restoreInstanceState(Bundle in, char[] password, File extFileDir) {
+        DomainState retained = sRetained;
+        if (retained != null && retained.mHandle == in.getLong(BUNDLE_TAG))
+            return retained;
+
+        return new DomainState(password, extFileDir, State.values()[in.getInt(BUNDLE_STATE_TAG)]);
+    }
+
+    /**
+     * Drop the retained state, e.g. when the activity is finishing.
+     */
+    public void release() {
+        if (sRetained == this)
+            sRetained = null;
+    }
 
     public void registerListener(IDomainStateListener listener) {
         if (!mListeners.contains(listener))
@@ -228,7 +783,40 @@ public class DomainState implements Parcelable {
         mListeners.remove(listener);
     }
 
+    // Apply a transition with compare-and-set, retrying if another thread
+    // changed the snapshot meanwhile. Returns the new snapshot, or null if the
+    // transition left it unchanged.
+    private Snapshot swap(ITransition t) {
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            Snapshot next = t.apply(current);
+            if (next == null)
+                return null;
+            if (mSnapshot.compareAndSet(current, next))
+                return next;
+        }
+    }
+
+    // Apply a transition and notify the listeners once if it changed the
+    // snapshot
+    private Snapshot update(ITransition t) {
+        Snapshot next = swap(t);
+        if (next != null)
+            notifyListeners();
+        return next;
+    }
+
+    // Listeners are called on the main thread
     private void notifyListeners() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    notifyListeners();
+                }
+            });
+            return;
+        }
+
         for (IDomainStateListener listener : mListeners) {
             listener.StateChanged(this);
         }
@@ -237,4 +825,8 @@ public class DomainState implements Parcelable {
     public static interface IDomainStateListener {
         void StateChanged(DomainState newState);
     }
+
+    public static interface IImportListener {
+        void importFinished(boolean succeeded);
+    }
 }
@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the index of the dump library: one entry per stored tag with
+ * its UID, time and type.
+ * 
+ * The index is small and stored in a file of its own, so dumps can be listed
+ * and looked up by UID without decrypting them.
+ * 
+ * A dump is either stored in full or as a TagDelta against an earlier dump of
+ * the same tag, its parent. Following the parents leads to a full dump.
+ * 
+ * One dump may be the active one, the tag in use by the app.
+ */
+public class DumpIndex {
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4;
+    private static final int ENTRY_SIZE_V1 = 8 + 8 + 1 + Tag.UID_SIZE;
+    private static final int ENTRY_SIZE = ENTRY_SIZE_V1 + 8;
+
+    private List<Entry> mEntries = new ArrayList<Entry>();
+    private long mNextId = 1;
+    private long mActiveId;
+
+    /**
+     * @return All entries, oldest first
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<Entry>(mEntries);
+    }
+
+    /**
+     * @return The entries of the dumps of a tag, oldest first
+     */
+    public List<Entry> findByUID(byte[] uid) {
+        List<Entry> found = new ArrayList<Entry>();
+        for (Entry e : mEntries) {
+            if (e.matchesUID(uid))
+                found.add(e);
+        }
+        return found;
+    }
+
+    /**
+     * @return The entry with the specified id, or null
+     */
+    public Entry get(long id) {
+        for (Entry e : mEntries) {
+            if (e.getId() == id)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * @return The entry of the active dump, or null
+     */
+    public Entry getActive() {
+        return mActiveId != 0 ? get(mActiveId) : null;
+    }
+
+    /**
+     * Make a dump the active one.
+     * 
+     * @param e
+     *            The entry of the dump, or null for none
+     */
+    public void setActive(Entry e) {
+        assert (e == null || mEntries.contains(e));
+        mActiveId = e != null ? e.mId : 0;
+    }
+
+    /**
+     * @return The latest entry of a tag, or null
+     */
+    public Entry findLatest(byte[] uid) {
+        for (int i = mEntries.size() - 1; i >= 0; --i) {
+            if (mEntries.get(i).matchesUID(uid))
+                return mEntries.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return The entry a delta dump is stored against, or null for a full
+     *         dump
+     */
+    public Entry getParent(Entry e) {
+        return e.isDelta() ? get(e.mParentId) : null;
+    }
+
+    /**
+     * @return The entries stored as a delta against an entry
+     */
+    public List<Entry> getChildren(Entry e) {
+        List<Entry> children = new ArrayList<Entry>();
+        for (Entry c : mEntries) {
+            if (c.mParentId == e.mId)
+                children.add(c);
+        }
+        return children;
+    }
+
+    /**
+     * @return The entries needed to rebuild a dump: the full dump first, then
+     *         the deltas up to and including e
+     */
+    public List<Entry> getChain(Entry e) {
+        List<Entry> chain = new ArrayList<Entry>();
+        for (Entry c = e; c != null; c = getParent(c))
+            chain.add(0, c);
+        return chain;
+    }
+
+    /**
+     * Add an entry for a tag, with a new id and the current time.
+     * 
+     * @param t
+     *            The tag
+     * @param parent
+     *            The entry the dump is stored against, or null if stored in
+     *            full
+     * @return The new entry
+     */
+    public Entry add(Tag t, Entry parent) {
+        assert (parent == null || parent.matchesUID(t.getUID()));
+        Entry e = new Entry(mNextId++, parent != null ? parent.mId : 0, t.getUID(), System.currentTimeMillis(),
+                TagType.getType(t.getSectorCount()));
+        mEntries.add(e);
+        return e;
+    }
+
+    /**
+     * Mark an entry as stored in full, after its dump was rewritten.
+     * 
+     * @return The replacing entry
+     */
+    public Entry setFull(Entry e) {
+        Entry full = new Entry(e.mId, 0, e.mUID, e.mTimestamp, e.mType);
+        mEntries.set(mEntries.indexOf(e), full);
+        return full;
+    }
+
+    /**
+     * @return true if the entry was in the index
+     */
+    public boolean remove(Entry e) {
+        if (e.mId == mActiveId)
+            mActiveId = 0;
+        return mEntries.remove(e);
+    }
+
+    /**
+     * @return The number of bytes of the serialized index
+     */
+    public int getSerializedSize() {
+        return HEADER_SIZE + mEntries.size() * ENTRY_SIZE + 8;
+    }
+
+    /**
+     * An immutable index entry.
+     */
+    public static class Entry {
+        private long mId;
+        private long mParentId;
+        private byte[] mUID;
+        private long mTimestamp;
+        private TagType mType;
+
+        private Entry(long id, long parentId, byte[] uid, long timestamp, TagType type) {
+            assert (uid != null && uid.length == Tag.UID_SIZE && type != null);
+            mId = id;
+            mParentId = parentId;
+            mUID = uid;
+            mTimestamp = timestamp;
+            mType = type;
+        }
+
+        /**
+         * @return The id of the dump, unique in the library
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return true if the dump is stored as a delta, see getParent()
+         */
+        public boolean isDelta() {
+            return mParentId != 0;
+        }
+
+        public byte[] getUID() {
+            return mUID.clone();
+        }
+
+        /**
+         * @return true if the first UID_SIZE bytes of a tag UID match
+         */
+        public boolean matchesUID(byte[] uid) {
+            return uid != null && uid.length >= Tag.UID_SIZE
+                    && Arrays.equals(mUID, Arrays.copyOf(uid, Tag.UID_SIZE));
+        }
+
+        /**
+         * @return The time the dump was stored, in milliseconds since the
+         *         epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public TagType getType() {
+            return mType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).mId == mId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mId ^ (mId >>> 32));
+        }
+    }
+
+    /**
+     * De-serialize an index from a buffer.
+     * 
+     * @param in
+     *            The buffer containing the index, from its position.
+     * @return The new de-serialized index
+     * @throws IOException
+     */
+    public static DumpIndex Read(ByteBuffer in) throws IOException {
+        int version = in.remaining() >= HEADER_SIZE ? in.getInt() : 0;
+        if (version < 1 || version > VERSION)
+            throw new IOException("Invalid dump index; unsupported version");
+
+        // Version 1 has no deltas
+        int entrySize = version == 1 ? ENTRY_SIZE_V1 : ENTRY_SIZE;
+        int count = in.getInt();
+        if (count < 0 || in.remaining() < count * entrySize)
+            throw new IOException("Invalid dump index; underflow");
+
+        DumpIndex index = new DumpIndex();
+        for (int i = 0; i < count; ++i) {
+            long id = in.getLong();
+            long parentId = version == 1 ? 0 : in.getLong();
+            long timestamp = in.getLong();
+            TagType type = TagType.getType(in.get() & 0xFF);
+            byte[] uid = new byte[Tag.UID_SIZE];
+            in.get(uid);
+            if (type == null)
+                throw new IOException("Invalid dump index; illegal type");
+
+            index.mEntries.add(new Entry(id, parentId, uid, timestamp, type));
+            index.mNextId = Math.max(index.mNextId, id + 1);
+        }
+
+        // Versions before 3 have no active dump
+        if (version >= 3) {
+            if (in.remaining() < 8)
+                throw new IOException("Invalid dump index; underflow");
+            index.mActiveId = in.getLong();
+        }
+
+        return index;
+    }
+
+    /**
+     * Serialize an index into a buffer.
+     * 
+     * @param index
+     *            The index to serialize
+     * @param out
+     *            The buffer to receive the data, with at least
+     *            getSerializedSize() bytes remaining
+     */
+    public static void Write(DumpIndex index, ByteBuffer out) {
+        assert (out.remaining() >= index.getSerializedSize());
+
+        out.putInt(VERSION);
+        out.putInt(index.mEntries.size());
+        for (Entry e : index.mEntries) {
+            out.putLong(e.mId);
+            out.putLong(e.mParentId);
+            out.putLong(e.mTimestamp);
+            out.put((byte) e.mType.getSectorCount());
+            out.put(e.mUID);
+        }
+        out.putLong(index.mActiveId);
+    }
+}
@@ -26,7 +26,11 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import javax.crypto.SecretKey;
 
 import android.os.Environment;
 
@@ -34,7 +38,15 @@ import android.os.Environment;
  * This class is the file IO interface for the android activities.
  * 
  * It stores tags and keys in encrypted files on the external storage (typically
- * SD-card).
+ * SD-card). Files are written as CryptoContainers, and files in the original
+ * CryptoIO format are read and migrated on the next save.
+ * 
+ * Tags are kept in the dump library, a directory with one file per dump and an
+ * index of the dumps (see DumpIndex). The current tag is the active dump of
+ * the index; a tag file of an older version is read until the next save. A
+ * dump of a tag that is already in the library is stored as a TagDelta against
+ * the latest one, up to MAX_DELTAS in a row. Full dumps are stored serialized,
+ * see Tag.Write().
  * 
  * It has functionality for loading and saving tag data, key chains, crypto,
  * salt, etc..
@@ -44,13 +56,36 @@ public class FileIO {
     private static final String TAG_FILE_NAME = "tag";
     private static final String KEY_FILE_NAME = "keys";
     private static final String SALT_FILE_NAME = "salt";
+    private static final String DICTIONARY_FILE_NAME = "dictionary.gkd";
+    private static final String KEY_STATS_FILE_NAME = "keystats";
+    private static final String KEY_BINDINGS_FILE_NAME = "keybindings";
+    private static final String DUMP_DIR_NAME = "dumps";
+    private static final String DUMP_INDEX_FILE_NAME = "index";
+    private static final String KEY_CHAIN_CACHE_KEY = "keys";
+
+    /**
+     * Number of deltas stored in a row before a dump is stored in full again
+     */
+    public static final int MAX_DELTAS = 8;
 
     private File mTagFile;
     private File mKeyFile;
     private File mSaltFile;
+    private File mDictionaryFile;
+    private File mKeyStatsFile;
+    private File mKeyBindingsFile;
+    private File mDumpDir;
+    private File mDumpIndexFile;
     private File mWorkingDir;
 
     private CryptoIO mCrypto;
+    private CryptoContainer mContainer;
+
+    // The dump library index, loaded on first use
+    private DumpIndex mDumpIndex;
+
+    // Decrypted dumps and keys, see SecretCache
+    private SecretCache mCache = new SecretCache(SecretCache.DEFAULT_BUDGET);
 
     /**
      * @param password
@@ -67,8 +102,16 @@ public class FileIO {
         mTagFile = new File(workingDir, TAG_FILE_NAME);
         mKeyFile = new File(workingDir, KEY_FILE_NAME);
         mSaltFile = new File(workingDir, SALT_FILE_NAME);
-
-        mCrypto = new CryptoIO(password, getSalt());
+        mDictionaryFile = new File(workingDir, DICTIONARY_FILE_NAME);
+        mKeyStatsFile = new File(workingDir, KEY_STATS_FILE_NAME);
+        mKeyBindingsFile = new File(workingDir, KEY_BINDINGS_FILE_NAME);
+        mDumpDir = new File(workingDir, DUMP_DIR_NAME);
+        mDumpIndexFile = new File(mDumpDir, DUMP_INDEX_FILE_NAME);
+
+        // Only derived once per session
+        SecretKey key = SessionKey.unlock(password, getKeyDerivation(password));
+        mCrypto = new CryptoIO(key);
+        mContainer = new CryptoContainer(key);
     }
 
     /**
@@ -79,43 +122,310 @@ public class FileIO {
     }
 
     /**
-     * @return true if the tag file exists on the external storage.
+     * @return true if there is a current tag, see loadTag()
+     * @throws Exception
      */
-    public boolean hasTag() {
-        return mTagFile.exists();
+    public synchronized boolean hasTag() throws Exception {
+        return loadDumpIndex().getActive() != null || mTagFile.exists();
     }
 
     /**
-     * Remove the tag stored on the external storage (if it exists).
+     * Remove the current tag. Its dump stays in the library.
+     * 
+     * @throws Exception
      */
-    public void deleteTag() {
+    public synchronized void deleteTag() throws Exception {
+        DumpIndex index = loadDumpIndex();
+        if (index.getActive() != null) {
+            index.setActive(null);
+            saveDumpIndex(index);
+        }
         if (mTagFile.exists())
             mTagFile.delete();
     }
 
     /**
-     * Load a tag from file and return it.
+     * Load the current tag: the active dump of the library, or the tag file of
+     * an older version.
+     * 
+     * @return The current tag
+     * @throws Exception
+     */
+    public synchronized Tag loadTag() throws Exception {
+        DumpIndex.Entry active = loadDumpIndex().getActive();
+        if (active != null)
+            return loadDump(active);
+
+        ByteBuffer[] chunks = Load(mTagFile);
+        if (chunks.length == 1)
+            return Tag.Read(chunks[0]); // CryptoIO format
+        return toTag(chunks);
+    }
+
+    /**
+     * Load a single sector of the current tag.
      * 
-     * @return The tag loaded from file
+     * @param sector
+     *            The sector to load
+     * @return The sector data, trailer included
      * @throws Exception
      */
-    public Tag loadTag() throws Exception {
-        InputStream in = Load(mTagFile);
-        return Tag.Read(in);
+    public ByteBuffer loadTagSector(int sector) throws Exception {
+        return loadTag().getSectorView(sector);
     }
 
     /**
-     * Save a tag to file. Overwrite the file if it exists.
+     * Add a tag to the dump library and make it the current tag, see
+     * saveDump().
      * 
      * @param t
      *            The tag to store
+     * @return The index entry of the new dump
      * @throws Exception
      */
-    public void saveTag(Tag t) throws Exception {
-        // Serialize the tag and save it
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Tag.Write(t, out);
-        Save(mTagFile, out);
+    public synchronized DumpIndex.Entry saveTag(Tag t) throws Exception {
+        DumpIndex.Entry e = addDump(t, true);
+        if (mTagFile.exists())
+            mTagFile.delete();
+        return e;
+    }
+
+    /**
+     * Make a dump of the library the current tag. Only the index is written.
+     * 
+     * @param e
+     *            The index entry of the dump
+     * @throws Exception
+     *             If the dump isn't in the library, or the index can't be
+     *             written
+     */
+    public synchronized void selectTag(DumpIndex.Entry e) throws Exception {
+        DumpIndex index = loadDumpIndex();
+        if (index.get(e.getId()) == null)
+            throw new IOException("No such dump");
+
+        index.setActive(index.get(e.getId()));
+        saveDumpIndex(index);
+        if (mTagFile.exists())
+            mTagFile.delete();
+    }
+
+    // One chunk for the type then one per sector, as written by older versions
+    private static Tag toTag(ByteBuffer[] chunks) throws IOException {
+        TagType type = chunks[0].remaining() == 1 ? TagType.getType(chunks[0].get(0) & 0xFF) : null;
+        if (type == null || chunks.length != 1 + type.getSectorCount())
+            throw new IOException("Invalid tag file");
+
+        Tag t = new Tag(type);
+        for (int s = 0; s < type.getSectorCount(); ++s) {
+            ByteBuffer sector = t.getSectorView(s);
+            if (chunks[1 + s].remaining() != sector.remaining())
+                throw new IOException("Invalid tag file; sector size");
+            sector.put(chunks[1 + s]);
+        }
+        return t;
+    }
+
+    /**
+     * Load the index of the dump library. It is only read from file once.
+     * 
+     * @return The index, empty if the library doesn't exist
+     * @throws Exception
+     */
+    public synchronized DumpIndex loadDumpIndex() throws Exception {
+        if (mDumpIndex == null)
+            mDumpIndex = mDumpIndexFile.exists() ? DumpIndex.Read(LoadSingle(mDumpIndexFile)) : new DumpIndex();
+        return mDumpIndex;
+    }
+
+    /**
+     * Add a tag to the dump library.
+     * 
+     * @param t
+     *            The tag to store
+     * @return The index entry of the new dump
+     * @throws Exception
+     */
+    public synchronized DumpIndex.Entry saveDump(Tag t) throws Exception {
+        return addDump(t, false);
+    }
+
+    // Store a dump and its index entry, which is made the active one if
+    // requested. The index is written once either way.
+    private DumpIndex.Entry addDump(Tag t, boolean active) throws Exception {
+        assertRWAccess();
+        DumpIndex index = loadDumpIndex();
+        if (!mDumpDir.isDirectory() && !mDumpDir.mkdirs())
+            throw new IOException("Can't create " + mDumpDir.getName());
+
+        // Store a delta against the latest dump of the tag, or rebase
+        DumpIndex.Entry latest = index.findLatest(t.getUID());
+        Tag previous = null;
+        if (latest != null && latest.getType().getSectorCount() == t.getSectorCount()
+                && index.getChain(latest).size() <= MAX_DELTAS)
+            previous = loadDump(latest);
+
+        // The dump is written first, an index entry always has a file
+        DumpIndex.Entry e = index.add(t, previous != null ? latest : null);
+        DumpIndex.Entry wasActive = index.getActive();
+        try {
+            if (previous != null)
+                saveDumpFile(e, TagDelta.diff(previous, t));
+            else
+                saveDumpFile(e, t);
+            if (active)
+                index.setActive(e);
+            saveDumpIndex(index);
+        } catch (Exception ex) {
+            index.remove(e);
+            index.setActive(wasActive);
+            throw ex;
+        }
+
+        // Usually the parent of the next dump
+        mCache.put(getCacheKey(e), t);
+        return e;
+    }
+
+    /**
+     * Load a tag from the dump library.
+     * 
+     * @param e
+     *            The index entry of the dump
+     * @return The tag
+     * @throws Exception
+     */
+    public synchronized Tag loadDump(DumpIndex.Entry e) throws Exception {
+        // Rebuild it from the full dump and the deltas after it, or from the
+        // latest version in the cache
+        List<DumpIndex.Entry> chain = loadDumpIndex().getChain(e);
+        Tag t = null;
+        int next = chain.size();
+        while (t == null && next > 0)
+            t = mCache.getTag(getCacheKey(chain.get(--next)));
+        if (t == null)
+            next = -1;
+
+        for (DumpIndex.Entry c : chain.subList(next + 1, chain.size()))
+            t = loadDumpFile(c, t);
+
+        mCache.put(getCacheKey(e), t);
+        return t;
+    }
+
+    /**
+     * Compare two dumps of the same tag type.
+     * 
+     * When from is an earlier version in the history of to, only from and the
+     * deltas after it are read.
+     * 
+     * @param from
+     *            The index entry of the older dump
+     * @param to
+     *            The index entry of the newer dump
+     * @return The numbers of the blocks that differ, in ascending order
+     * @throws Exception
+     */
+    public synchronized int[] diffDumps(DumpIndex.Entry from, DumpIndex.Entry to) throws Exception {
+        Tag a = loadDump(from);
+        Tag b;
+
+        List<DumpIndex.Entry> chain = loadDumpIndex().getChain(to);
+        int i = chain.indexOf(from);
+        if (i >= 0 && mCache.getTag(getCacheKey(to)) == null) {
+            b = new Tag(a);
+            for (DumpIndex.Entry c : chain.subList(i + 1, chain.size()))
+                b = loadDumpFile(c, b);
+        } else {
+            b = loadDump(to);
+        }
+
+        if (a.getSectorCount() != b.getSectorCount())
+            throw new IOException("Can't compare tags of different types");
+        return TagDelta.diff(a, b).getBlocks();
+    }
+
+    /**
+     * Remove a tag from the dump library. Dumps stored as a delta against it
+     * are stored in full first.
+     * 
+     * @param e
+     *            The index entry of the dump
+     * @throws Exception
+     */
+    public synchronized void deleteDump(DumpIndex.Entry e) throws Exception {
+        DumpIndex index = loadDumpIndex();
+        if (index.get(e.getId()) == null)
+            return;
+
+        for (DumpIndex.Entry c : index.getChildren(e)) {
+            saveDumpFile(c, loadDump(c));
+            index.setFull(c);
+        }
+
+        index.remove(e);
+        saveDumpIndex(index);
+        getDumpFile(e).delete();
+        mCache.remove(getCacheKey(e));
+    }
+
+    // Read the file of a dump. A full dump is returned, a delta is applied to
+    // the tag of its parent.
+    private Tag loadDumpFile(DumpIndex.Entry e, Tag parent) throws Exception {
+        ByteBuffer[] chunks = Load(getDumpFile(e));
+        if (chunks.length > 1)
+            return toTag(chunks); // One chunk per sector, as the tag file
+        if (!e.isDelta())
+            return Tag.Read(chunks[0]);
+        if (parent == null)
+            throw new IOException("Invalid dump; missing parent");
+
+        TagDelta.Read(chunks[0]).apply(parent);
+        return parent;
+    }
+
+    private void saveDumpFile(DumpIndex.Entry e, Tag t) throws Exception {
+        ByteBuffer clear = ByteBuffer.allocate(t.getSerializedSize());
+        Tag.Write(t, clear);
+        clear.flip();
+        Save(getDumpFile(e), new ByteBuffer[] { clear });
+    }
+
+    private void saveDumpFile(DumpIndex.Entry e, TagDelta delta) throws Exception {
+        ByteBuffer clear = ByteBuffer.allocate(delta.getSerializedSize());
+        TagDelta.Write(delta, clear);
+        clear.flip();
+        Save(getDumpFile(e), new ByteBuffer[] { clear });
+    }
+
+    private static String getCacheKey(DumpIndex.Entry e) {
+        return "dump:" + e.getId();
+    }
+
+    /**
+     * Change the byte budget of the cache of decrypted dumps and keys.
+     */
+    public void setCacheBudget(int bytes) {
+        mCache.setBudget(bytes);
+    }
+
+    /**
+     * Wipe the cache of decrypted dumps and keys, e.g. when the app goes to
+     * the background.
+     */
+    public void clearCache() {
+        mCache.clear();
+    }
+
+    private void saveDumpIndex(DumpIndex index) throws Exception {
+        ByteBuffer clear = ByteBuffer.allocate(index.getSerializedSize());
+        DumpIndex.Write(index, clear);
+        clear.flip();
+        Save(mDumpIndexFile, new ByteBuffer[] { clear });
+    }
+
+    private File getDumpFile(DumpIndex.Entry e) {
+        return new File(mDumpDir, Long.toHexString(e.getId()));
     }
 
     /**
@@ -129,6 +439,7 @@ public class FileIO {
      * Remove the key chain stored on the external storage (if it exists).
      */
     public void deleteKeyChain() {
+        mCache.remove(KEY_CHAIN_CACHE_KEY);
         if (mKeyFile.exists())
             mKeyFile.delete();
     }
@@ -140,8 +451,12 @@ public class FileIO {
      * @throws Exception
      */
     public KeyChain loadKeyChain() throws Exception {
-        InputStream in = Load(mKeyFile);
-        return KeyChain.Read(in);
+        KeyChain k = mCache.getKeyChain(KEY_CHAIN_CACHE_KEY);
+        if (k == null) {
+            k = KeyChain.Read(LoadSingle(mKeyFile));
+            mCache.put(KEY_CHAIN_CACHE_KEY, k);
+        }
+        return k;
     }
 
     /**
@@ -174,9 +489,102 @@ public class FileIO {
      */
     public void saveKeyChain(KeyChain k) throws Exception {
         // Serialize the keys and save
+        ByteBuffer clear = ByteBuffer.allocate(KeyChain.SERIALIZED_SIZE);
+        KeyChain.Write(k, clear);
+        clear.flip();
+        mCache.remove(KEY_CHAIN_CACHE_KEY);
+        Save(mKeyFile, new ByteBuffer[] { clear });
+        mCache.put(KEY_CHAIN_CACHE_KEY, k);
+    }
+
+    /**
+     * Load the key chains bound to cards.
+     * 
+     * @return The key bindings, empty if none are stored
+     * @throws Exception
+     */
+    public KeyBindings loadKeyBindings() throws Exception {
+        if (!mKeyBindingsFile.exists())
+            return new KeyBindings();
+        return KeyBindings.Read(LoadSingle(mKeyBindingsFile));
+    }
+
+    /**
+     * Save the key chains bound to cards. Overwrite the file if it exists.
+     * 
+     * @param b
+     *            The key bindings to store
+     * @throws Exception
+     */
+    public void saveKeyBindings(KeyBindings b) throws Exception {
+        ByteBuffer clear = ByteBuffer.allocate(b.getSerializedSize());
+        KeyBindings.Write(b, clear);
+        clear.flip();
+        Save(mKeyBindingsFile, new ByteBuffer[] { clear });
+    }
+
+    /**
+     * @return true if the key dictionary file exists on the external storage.
+     */
+    public boolean hasKeyDictionary() {
+        return mDictionaryFile.exists();
+    }
+
+    /**
+     * Remove the key dictionary and its statistics from the external storage
+     * (if they exist).
+     */
+    public void deleteKeyDictionary() {
+        if (mDictionaryFile.exists())
+            mDictionaryFile.delete();
+        if (mKeyStatsFile.exists())
+            mKeyStatsFile.delete();
+    }
+
+    /**
+     * Map the compiled key dictionary into memory and load the learned key
+     * statistics.
+     * 
+     * The dictionary holds candidate keys only and is stored unencrypted so
+     * that it can be memory mapped. The statistics, which reveal the keys of
+     * the recorded cards, are encrypted.
+     * 
+     * @return The key dictionary
+     * @throws Exception
+     */
+    public KeyDictionary loadKeyDictionary() throws Exception {
+        assertRWAccess();
+        KeyDictionary d = KeyDictionary.map(mDictionaryFile);
+        if (mKeyStatsFile.exists())
+            KeyDictionary.ReadStats(d, asStream(LoadSingle(mKeyStatsFile)));
+        return d;
+    }
+
+    /**
+     * Compile a non-encrypted text key list into the key dictionary file,
+     * replacing the current dictionary, and load it.
+     * 
+     * @return The new key dictionary
+     * @throws Exception
+     */
+    public KeyDictionary importKeyDictionary(InputStream in) throws Exception {
+        assertRWAccess();
+        KeyDictionaryCompiler.compile(in, mDictionaryFile);
+        return loadKeyDictionary();
+    }
+
+    /**
+     * Save the learned statistics of a key dictionary to file.
+     * 
+     * @param d
+     *            The key dictionary
+     * @throws Exception
+     */
+    public void saveKeyStatistics(KeyDictionary d) throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        KeyChain.Write(k, out);
-        Save(mKeyFile, out);
+        KeyDictionary.WriteStats(d, out);
+
+        Save(mKeyStatsFile, new ByteBuffer[] { ByteBuffer.wrap(out.toByteArray()) });
     }
 
     private static void assertRWAccess() throws IOException {
@@ -185,63 +593,140 @@ public class FileIO {
             throw new IOException("Can't access external storage");
     }
 
-    private InputStream Load(File f) throws Exception {
+    // Read and decrypt a file in either format, one buffer per chunk. A file
+    // in the CryptoIO format is a single chunk.
+    private ByteBuffer[] Load(File f) throws Exception {
         assertRWAccess();
         if (!f.exists())
             throw new IOException("File not found");
 
-        // Decrypt the file
-        InputStream isCipherText = new FileInputStream(f);
-        ByteArrayOutputStream outClear = new ByteArrayOutputStream();
-        mCrypto.decrypt(isCipherText, outClear);
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            if (CryptoContainer.isContainer(channel))
+                return mContainer.read(channel);
+            return new ByteBuffer[] { mCrypto.decrypt(channel) };
+        } finally {
+            in.close();
+        }
+    }
 
-        // Pipe clear text output to input
-        return new ByteArrayInputStream(outClear.toByteArray());
+    private ByteBuffer LoadSingle(File f) throws Exception {
+        ByteBuffer[] chunks = Load(f);
+        if (chunks.length != 1)
+            throw new IOException("Invalid file; unexpected chunks");
+        return chunks[0];
     }
 
-    private void Save(File f, ByteArrayOutputStream out) throws Exception {
+    // Encrypt chunks into a new container. It is written to a temporary file
+    // that replaces the current one, so a file is never half written.
+    private void Save(File f, ByteBuffer[] chunks) throws Exception {
         assertRWAccess();
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        writeContainer(mContainer, chunks, tmp);
+        if (!tmp.renameTo(f))
+            throw new IOException("Can't replace " + f.getName());
+    }
 
-        // Pipe clear text out stream to an in stream
-        InputStream inClearText = new ByteArrayInputStream(out.toByteArray());
+    private static void writeContainer(CryptoContainer container, ByteBuffer[] chunks, File f) throws Exception {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            container.write(out.getChannel(), chunks);
+        } finally {
+            out.close();
+        }
+    }
 
-        // Encrypt data stream and send it to a file
-        OutputStream outCipherText = new FileOutputStream(f);
-        mCrypto.encrypt(inClearText, outCipherText);
+    private static InputStream asStream(ByteBuffer b) {
+        return new ByteArrayInputStream(b.array(), b.arrayOffset() + b.position(), b.remaining());
     }
 
-    // Return password salt from the salt file. Generate it if it doesn't exist.
-    private byte[] getSalt() throws Exception {
+    // Return the key derivation parameters from the salt file. Calibrate them
+    // if the file doesn't exist, and upgrade a legacy salt file.
+    private KeyDerivation getKeyDerivation(char[] password) throws Exception {
         assertRWAccess();
 
-        byte[] salt;
-        if (mSaltFile.exists()) {
-            // Salt file exists, read it.
-            InputStream is = null;
-            try {
-                is = new FileInputStream(mSaltFile);
-                salt = new byte[CryptoIO.SALT_SIZE];
-                int read = is.read(salt);
-                if (read != CryptoIO.SALT_SIZE)
-                    throw new IOException("Illegal salt file length");
-            } finally {
-                if (is != null)
-                    is.close();
-            }
-        } else {
+        if (!mSaltFile.exists()) {
             // No salt file. Create it.
-            salt = CryptoIO.makeSalt();
+            KeyDerivation kdf = KeyDerivation.calibrate(KeyDerivation.TARGET_MILLIS);
+            writeKeyDerivation(kdf);
+            return kdf;
+        }
+
+        // Salt file exists, read it.
+        KeyDerivation kdf;
+        InputStream is = new FileInputStream(mSaltFile);
+        try {
+            kdf = KeyDerivation.Read(is);
+        } finally {
+            is.close();
+        }
+
+        if (kdf.isLegacy())
+            return upgrade(password, kdf);
+
+        finishUpgrade();
+        return kdf;
+    }
 
-            OutputStream out = null;
+    // Re-encrypt the files written with a legacy key with a calibrated one.
+    // The re-encrypted files are written next to the originals, the new salt
+    // file is the commit point, then the originals are replaced.
+    private KeyDerivation upgrade(char[] password, KeyDerivation legacy) throws Exception {
+        // Drop what an interrupted upgrade left before its commit point
+        for (File f : getEncryptedFiles())
+            getUpgradeFile(f).delete();
+
+        KeyDerivation kdf = KeyDerivation.calibrate(KeyDerivation.TARGET_MILLIS);
+        CryptoIO from = new CryptoIO(CryptoIO.deriveKey(password, legacy));
+        CryptoContainer to = new CryptoContainer(SessionKey.unlock(password, kdf));
+
+        // Files from before the upgrade are all in the CryptoIO format. They
+        // are written as single chunk containers, the tag is split into
+        // sectors on its next save.
+        for (File f : getEncryptedFiles()) {
+            if (!f.exists())
+                continue;
+
+            ByteBuffer clear;
+            FileInputStream in = new FileInputStream(f);
             try {
-                out = new FileOutputStream(mSaltFile);
-                out.write(salt);
+                clear = from.decrypt(in.getChannel());
             } finally {
-                if (out != null)
-                    out.close();
+                in.close();
             }
+            writeContainer(to, new ByteBuffer[] { clear }, getUpgradeFile(f));
         }
 
-        return salt;
+        writeKeyDerivation(kdf);
+        finishUpgrade();
+
+        return kdf;
+    }
+
+    // Replace the files re-encrypted by a committed upgrade
+    private void finishUpgrade() throws IOException {
+        for (File f : getEncryptedFiles()) {
+            File upgraded = getUpgradeFile(f);
+            if (upgraded.exists() && !upgraded.renameTo(f))
+                throw new IOException("Can't replace " + f.getName());
+        }
+    }
+
+    private File[] getEncryptedFiles() {
+        return new File[] { mTagFile, mKeyFile, mKeyStatsFile };
+    }
+
+    private static File getUpgradeFile(File f) {
+        return new File(f.getParentFile(), f.getName() + ".upgrade");
+    }
+
+    // Write the salt file through a temporary file, so it is never half
+    // written
+    private void writeKeyDerivation(KeyDerivation kdf) throws IOException {
+        File tmp = new File(mWorkingDir, SALT_FILE_NAME + ".tmp");
+        KeyDerivation.Write(kdf, new FileOutputStream(tmp));
+        if (!tmp.renameTo(mSaltFile))
+            throw new IOException("Can't write the salt file");
     }
 }
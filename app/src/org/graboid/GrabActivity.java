@@ -20,6 +20,7 @@
 package org.graboid;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 
 import org.graboid.DomainState.State;
@@ -32,6 +33,7 @@ import android.app.DownloadManager.Request;
 import android.app.FragmentManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
@@ -71,6 +73,10 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
     private long mDownloadId = -1;
     static final private String DOWNLOAD_ID_TAG = "DOWNLOAD_ID_TAG";
 
+    static final private String PASSWORD = "passwd";
+
+    static final private String DEFAULT_DICTIONARY_URI = "file:///android_asset/dictionary.keys";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -81,17 +87,12 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
 
         // Create or restore state
         if (savedInstanceState == null) {
-            // Create state
-            try {
-                mState = new DomainState("passwd".toCharArray(), getExternalFilesDir(null));
-            } catch (Exception e) {
-                // TODO Show some message here
-                finish();
-                return;
-            }
+            // Create state, the stored keys and tag load in the background
+            mState = new DomainState(PASSWORD.toCharArray(), getExternalFilesDir(null));
         } else {
-            // Restore state
-            mState = savedInstanceState.getParcelable(DomainState.BUNDLE_TAG);
+            // Restore state, loaded again if the process was gone
+            mState = DomainState.restoreInstanceState(savedInstanceState, PASSWORD.toCharArray(),
+                    getExternalFilesDir(null));
             mDownloadId = savedInstanceState.getLong(DOWNLOAD_ID_TAG);
         }
 
@@ -127,7 +128,7 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putParcelable(DomainState.BUNDLE_TAG, mState);
+        mState.saveInstanceState(outState);
         outState.putLong(DOWNLOAD_ID_TAG, mDownloadId);
     }
 
@@ -142,6 +143,27 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        // The state outlives configuration changes, don't leak this activity
+        mState.unregisterListener(this);
+
+        // Leaving the app ends the key session, configuration changes keep it
+        if (isFinishing()) {
+            mState.release();
+            SessionKey.lock();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Don't keep decrypted data around while in the background
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            mState.wipeCache();
+        super.onTrimMemory(level);
+    }
+
     /*
      * @Override public void onStop() { super.onStop(); }
      */
@@ -171,10 +193,14 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
             return menuClearTag(item);
         case R.id.menu_fuse_acl:
             return menuFuseACL(item);
+        case R.id.menu_batch_replay:
+            return menuBatchReplay(item);
         case R.id.menu_info:
             return menuInfo(item);
         case R.id.menu_import_default:
             return menuImportDefault(item);
+        case R.id.menu_import_dictionary:
+            return menuImportDictionary(item);
         default:
             return super.onOptionsItemSelected(item);
         }
@@ -185,7 +211,9 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         if (mState != null) {
             menu.findItem(R.id.menu_clear_keys).setEnabled(mState.hasKeys());
             menu.findItem(R.id.menu_clear_tag).setEnabled(mState.hasTag());
-            menu.findItem(R.id.menu_fuse_acl).setEnabled(mState.hasTag());
+            menu.findItem(R.id.menu_fuse_acl).setEnabled(mState.hasTag() && mState.getBatch() == null);
+            menu.findItem(R.id.menu_batch_replay).setEnabled(
+                    mState.hasTag() && mState.hasKeys() && mState.getBatch() == null);
         }
         return super.onPrepareOptionsMenu(menu);
     }
@@ -196,6 +224,11 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         return true;
     }
 
+    public boolean menuBatchReplay(MenuItem item) {
+        mState.startBatch();
+        return true;
+    }
+
     public boolean menuFuseACL(MenuItem item) {
         AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this)
                 .setTitle(R.string.menu_fuse_acl_confirm_title).setMessage(R.string.menu_fuse_acl_confirm_message);
@@ -203,8 +236,7 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 dialog.dismiss();
-                if (mState.hasTag()) {
-                    mState.getTag().fuseACL();
+                if (mState.fuseACL()) {
                     Toast.makeText(GrabActivity.this, getString(R.string.tag_acl_fused), Toast.LENGTH_SHORT).show();
                 }
 
@@ -280,6 +312,11 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         return true;
     }
 
+    public boolean menuImportDictionary(MenuItem item) {
+        importDictionary(Uri.parse(DEFAULT_DICTIONARY_URI));
+        return true;
+    }
+
     public void tap(View view) {
         mState.activate();
     }
@@ -293,6 +330,18 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
     private void refreshState() {
         invalidateOptionsMenu();
 
+        if (!mState.hasStorage()) {
+            Toast.makeText(this, R.string.err_irrecoverable, Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+
+        if (mState.getState() == DomainState.State.LOADING) {
+            mTextView.setText(R.string.loading_text);
+            mImageView.setImageResource(R.drawable.nokey);
+            return;
+        }
+
         if (!mState.hasKeys()) {
             mTextView.setText(R.string.nokey_text);
             mImageView.setImageResource(R.drawable.nokey);
@@ -313,7 +362,12 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
             mImageView.setImageResource(R.drawable.loaded);
             break;
         case REPLAYING:
-            mTextView.setText(R.string.replay_text);
+            BatchReplay batch = mState.getBatch();
+            if (batch != null)
+                mTextView.setText(getString(R.string.batch_replay_text, batch.getSucceeded(), batch.getFailed(),
+                        batch.getCardsPerMinute(), batch.getAverageMillis(), batch.getSkipped()));
+            else
+                mTextView.setText(R.string.replay_text);
             mImageView.setImageResource(R.drawable.replaying);
             break;
         default:
@@ -429,26 +483,7 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
 
     private void importKeys(final Uri uri) {
         try {
-            KeyChain kc = null;
-
-            if (uri.getScheme().equals("content")) {
-                // Import from content stream
-                InputStream inStream = getContentResolver().openInputStream(uri);
-                kc = FileIO.importKeyChain(inStream);
-            } else if (uri.getScheme().equals("file") && uri.getPath().contains("android_asset")) {
-                // Import from asset file
-                InputStream inStream = getAssets().open(uri.getLastPathSegment());
-                kc = FileIO.importKeyChain(inStream);
-            } else if (uri.getScheme().equals("file")) {
-                // Import from local file
-                File f = new File(uri.getPath());
-                if (!f.exists())
-                    throw new Exception("No such file");
-                kc = FileIO.importKeyChain(f);
-            } else {
-                throw new Exception("Unsupported import scheme");
-            }
-
+            KeyChain kc = FileIO.importKeyChain(openImport(uri));
             mState.setKeys(kc);
             Toast.makeText(GrabActivity.this, getString(R.string.key_import_success), Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
@@ -456,6 +491,40 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         }
     }
 
+    private void importDictionary(final Uri uri) {
+        // Compiled in the background, the activity may be gone once done
+        final Context context = getApplicationContext();
+        try {
+            mState.importDictionary(openImport(uri), new DomainState.IImportListener() {
+                public void importFinished(boolean succeeded) {
+                    Toast.makeText(context,
+                            succeeded ? R.string.dictionary_import_success : R.string.err_dictionary_import,
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
+        } catch (Exception e) {
+            Toast.makeText(GrabActivity.this, getString(R.string.err_dictionary_import), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private InputStream openImport(final Uri uri) throws Exception {
+        if (uri.getScheme().equals("content")) {
+            // Import from content stream
+            return getContentResolver().openInputStream(uri);
+        } else if (uri.getScheme().equals("file") && uri.getPath().contains("android_asset")) {
+            // Import from asset file
+            return getAssets().open(uri.getLastPathSegment());
+        } else if (uri.getScheme().equals("file")) {
+            // Import from local file
+            File f = new File(uri.getPath());
+            if (!f.exists())
+                throw new Exception("No such file");
+            return new FileInputStream(f);
+        } else {
+            throw new Exception("Unsupported import scheme");
+        }
+    }
+
     private void importKeysWithConfirmation(final Uri uri) {
         AlertDialog dialog = new AlertDialog.Builder(this).setTitle(R.string.key_import_confirm_title)
                 .setMessage(R.string.key_import_confirm_message)
@@ -483,19 +552,50 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
             return;
         }
 
-        if (!mState.hasKeys()) {
+        if (mState.getState() == DomainState.State.LOADING) {
+            Toast.makeText(this, R.string.tag_loading, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Use the keys bound to the card, if any
+        mState.selectKeys(tag.getId(), KeyBindings.getATQA(tag), KeyBindings.getSAK(tag));
+
+        if (!mState.hasKeys() && mState.hasDictionary()) {
+            recoverKeys(mifareTag);
+        } else if (!mState.hasKeys()) {
             Toast.makeText(this, R.string.tag_no_keys, Toast.LENGTH_SHORT).show();
         } else if (mState.getState() == DomainState.State.CLEAN) {
             Toast.makeText(this, R.string.tag_not_recording, Toast.LENGTH_SHORT).show();
         } else if (mState.getState() == DomainState.State.LOADED) {
-            Toast.makeText(this, R.string.tag_not_replaying, Toast.LENGTH_SHORT).show();
+            verifyTag(mifareTag);
         } else if (mState.getState() == DomainState.State.RECORDING) {
             readTag(mifareTag);
+        } else if (mState.getState() == DomainState.State.REPLAYING && mState.getBatch() != null) {
+            batchWriteTag(mifareTag);
         } else if (mState.getState() == DomainState.State.REPLAYING) {
             writeTag(mifareTag);
         }
     }
 
+    // Show the progress of a task and start it. A task still running for an
+    // earlier tap is dismissed, which cancels it.
+    private void startTask(TaskFragment taskFragment, MifareTask<?> task, MifareClassic tag) {
+        TaskFragment stale = (TaskFragment) mFragmentManager.findFragmentByTag(TASK_FRAGMENT_TAG);
+        if (stale != null)
+            stale.dismiss();
+
+        taskFragment.show(mFragmentManager, TASK_FRAGMENT_TAG);
+        task.start(tag);
+    }
+
+    public void recoverKeys(MifareClassic tag) {
+        // Create a retaining fragment and start the task
+        TaskFragment taskFragment = new TaskFragment();
+        KeyRecoveryTask recoveryTask = new KeyRecoveryTask(mState, taskFragment);
+        taskFragment.initialize(mState, recoveryTask, getString(R.string.recover_keys_progress));
+        startTask(taskFragment, recoveryTask, tag);
+    }
+
     public void readTag(MifareClassic tag) {
         // Test key compatibility
         if (tag.getSectorCount() > mState.getKeys().getSectorCount()) {
@@ -507,8 +607,41 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         TaskFragment taskFragment = new TaskFragment();
         ReadMifareTask readTask = new ReadMifareTask(mState, taskFragment);
         taskFragment.initialize(mState, readTask, getString(R.string.read_tag_progress));
-        taskFragment.show(mFragmentManager, TASK_FRAGMENT_TAG);
-        readTask.execute(tag);
+        startTask(taskFragment, readTask, tag);
+    }
+
+    public void verifyTag(MifareClassic tag) {
+        // Test key compatibility
+        if (tag.getSectorCount() > mState.getKeys().getSectorCount()) {
+            Toast.makeText(this, R.string.err_to_few_keys, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Only the card the dump was read from is compared
+        if (!mState.getTag().matchesUID(tag.getTag().getId())) {
+            Toast.makeText(this, R.string.err_wrong_uid, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Create a retaining fragment and start the task
+        TaskFragment taskFragment = new TaskFragment();
+        VerifyMifareTask verifyTask = new VerifyMifareTask(mState, taskFragment);
+        taskFragment.initialize(mState, verifyTask, getString(R.string.verify_tag_progress));
+        startTask(taskFragment, verifyTask, tag);
+    }
+
+    public void batchWriteTag(MifareClassic tag) {
+        // Test key compatibility
+        if (tag.getSectorCount() > mState.getKeys().getSectorCount()) {
+            Toast.makeText(this, R.string.err_to_few_keys, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Any card is written, the UID isn't checked
+        TaskFragment taskFragment = new TaskFragment();
+        BatchWriteMifareTask writeTask = new BatchWriteMifareTask(mState, taskFragment);
+        taskFragment.initialize(mState, writeTask, getString(R.string.write_tag_progress));
+        startTask(taskFragment, writeTask, tag);
     }
 
     public void writeTag(MifareClassic tag) {
@@ -532,7 +665,6 @@ public class GrabActivity extends Activity implements DomainState.IDomainStateLi
         TaskFragment taskFragment = new TaskFragment();
         WriteMifareTask writeTask = new WriteMifareTask(mState, taskFragment);
         taskFragment.initialize(mState, writeTask, getString(R.string.write_tag_progress));
-        taskFragment.show(mFragmentManager, TASK_FRAGMENT_TAG);
-        writeTask.execute(tag);
+        startTask(taskFragment, writeTask, tag);
     }
 }
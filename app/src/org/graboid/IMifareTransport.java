@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+/**
+ * The command set MifareIO needs from a Mifare Classic card.
+ * 
+ * It mirrors the parts of android.nfc.tech.MifareClassic in use, so that the
+ * IO code can run against a real card or a simulated one.
+ */
+public interface IMifareTransport {
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * @return The UID reported by the card during anti-collision
+     */
+    byte[] getUID();
+
+    int getSectorCount();
+
+    int getBlockCountInSector(int sector);
+
+    int sectorToBlock(int sector);
+
+    boolean authenticateSectorWithKeyA(int sector, byte[] key) throws IOException;
+
+    boolean authenticateSectorWithKeyB(int sector, byte[] key) throws IOException;
+
+    byte[] readBlock(int block) throws IOException;
+
+    void writeBlock(int block, byte[] data) throws IOException;
+}
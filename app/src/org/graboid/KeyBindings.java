@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.nfc.tech.NfcA;
+
+/**
+ * This class maps cards to the key chains to use with them.
+ * 
+ * A binding matches a card by UID prefix (the full UID, a shorter prefix or
+ * none), ATQA and SAK, the latter two possibly ANY. When several bindings
+ * match, the one with the longest UID prefix wins, then the one that matches
+ * on ATQA and SAK.
+ */
+public class KeyBindings {
+    /**
+     * Matches any ATQA or SAK
+     */
+    public static final int ANY = -1;
+
+    private static final int VERSION = 1;
+
+    private List<Binding> mBindings = new ArrayList<Binding>();
+
+    public KeyBindings() {
+    }
+
+    /**
+     * Create a deep copy of a KeyBindings.
+     */
+    public KeyBindings(KeyBindings other) {
+        for (Binding b : other.mBindings)
+            mBindings.add(new Binding(b.mUIDPrefix, b.mATQA, b.mSAK, new KeyChain(b.mKeys)));
+    }
+
+    /**
+     * Find the key chain bound to a card.
+     * 
+     * @param uid
+     *            The UID of the card
+     * @param atqa
+     *            The ATQA of the card, see getATQA(), or ANY if unknown
+     * @param sak
+     *            The SAK of the card, see getSAK(), or ANY if unknown
+     * @return The key chain of the most specific matching binding, or null
+     */
+    public KeyChain find(byte[] uid, int atqa, int sak) {
+        Binding best = null;
+        for (Binding b : mBindings) {
+            if (b.matches(uid, atqa, sak) && (best == null || b.getSpecificity() > best.getSpecificity()))
+                best = b;
+        }
+        return best != null ? best.mKeys : null;
+    }
+
+    /**
+     * Bind a key chain to cards, replacing the binding with the same criteria.
+     * The key chain is copied.
+     * 
+     * @param uidPrefix
+     *            The UID prefix to match, empty to match any UID
+     * @param atqa
+     *            The ATQA to match, or ANY
+     * @param sak
+     *            The SAK to match, or ANY
+     * @param keys
+     *            The key chain
+     */
+    public void bind(byte[] uidPrefix, int atqa, int sak, KeyChain keys) {
+        assert (uidPrefix != null && uidPrefix.length < 256 && keys != null);
+        unbind(uidPrefix, atqa, sak);
+        mBindings.add(new Binding(uidPrefix.clone(), atqa, sak, new KeyChain(keys)));
+    }
+
+    /**
+     * Remove the binding with the specified criteria.
+     * 
+     * @return true if there was such a binding
+     */
+    public boolean unbind(byte[] uidPrefix, int atqa, int sak) {
+        for (int i = 0; i < mBindings.size(); ++i) {
+            Binding b = mBindings.get(i);
+            if (Arrays.equals(b.mUIDPrefix, uidPrefix) && b.mATQA == atqa && b.mSAK == sak) {
+                mBindings.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add copies of all bindings of another KeyBindings, replacing bindings
+     * with the same criteria.
+     */
+    public void putAll(KeyBindings other) {
+        for (Binding b : other.mBindings)
+            bind(b.mUIDPrefix, b.mATQA, b.mSAK, b.mKeys);
+    }
+
+    /**
+     * Remove all bindings.
+     */
+    public void clear() {
+        mBindings.clear();
+    }
+
+    public int size() {
+        return mBindings.size();
+    }
+
+    /**
+     * @return The ATQA of a tag as an int, or ANY if it isn't an NFC-A tag
+     */
+    public static int getATQA(android.nfc.Tag tag) {
+        NfcA nfcA = NfcA.get(tag);
+        if (nfcA == null || nfcA.getAtqa() == null || nfcA.getAtqa().length != 2)
+            return ANY;
+        byte[] atqa = nfcA.getAtqa();
+        return (atqa[0] & 0xFF) | (atqa[1] & 0xFF) << 8;
+    }
+
+    /**
+     * @return The SAK of a tag, or ANY if it isn't an NFC-A tag
+     */
+    public static int getSAK(android.nfc.Tag tag) {
+        NfcA nfcA = NfcA.get(tag);
+        return nfcA != null ? nfcA.getSak() & 0xFF : ANY;
+    }
+
+    private static class Binding {
+        byte[] mUIDPrefix;
+        int mATQA;
+        int mSAK;
+        KeyChain mKeys;
+
+        Binding(byte[] uidPrefix, int atqa, int sak, KeyChain keys) {
+            mUIDPrefix = uidPrefix;
+            mATQA = atqa;
+            mSAK = sak;
+            mKeys = keys;
+        }
+
+        boolean matches(byte[] uid, int atqa, int sak) {
+            if (uid == null || uid.length < mUIDPrefix.length)
+                return false;
+            for (int i = 0; i < mUIDPrefix.length; ++i) {
+                if (uid[i] != mUIDPrefix[i])
+                    return false;
+            }
+            return (mATQA == ANY || mATQA == atqa) && (mSAK == ANY || mSAK == sak);
+        }
+
+        int getSpecificity() {
+            return mUIDPrefix.length * 4 + (mATQA != ANY ? 2 : 0) + (mSAK != ANY ? 1 : 0);
+        }
+    }
+
+    /**
+     * @return The number of bytes of the serialized bindings
+     */
+    public int getSerializedSize() {
+        int size = 4 + 4;
+        for (Binding b : mBindings)
+            size += 1 + b.mUIDPrefix.length + 4 + 4 + 1 + b.mKeys.getSectorCount() * 2 * 8;
+        return size;
+    }
+
+    /**
+     * De-serialize bindings from a buffer.
+     * 
+     * @param in
+     *            The buffer containing the bindings, from its position.
+     * @return The new de-serialized bindings
+     * @throws IOException
+     */
+    public static KeyBindings Read(ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt() != VERSION)
+                throw new IOException("Invalid key bindings; unsupported version");
+
+            KeyBindings bindings = new KeyBindings();
+            int count = in.getInt();
+            for (int i = 0; i < count; ++i) {
+                byte[] prefix = new byte[in.get() & 0xFF];
+                in.get(prefix);
+                int atqa = in.getInt();
+                int sak = in.getInt();
+
+                TagType type = TagType.getType(in.get() & 0xFF);
+                if (type == null)
+                    throw new IOException("Invalid key bindings; illegal type");
+                KeyChain keys = new KeyChain(type);
+                for (int s = 0; s < keys.getSectorCount(); ++s) {
+                    keys.setKeyA(s, in.getLong());
+                    keys.setKeyB(s, in.getLong());
+                }
+
+                bindings.mBindings.add(new Binding(prefix, atqa, sak, keys));
+            }
+            return bindings;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Invalid key bindings; underflow");
+        }
+    }
+
+    /**
+     * Serialize bindings into a buffer.
+     * 
+     * @param bindings
+     *            The bindings to serialize
+     * @param out
+     *            The buffer to receive the data, with at least
+     *            getSerializedSize() bytes remaining
+     */
+    public static void Write(KeyBindings bindings, ByteBuffer out) {
+        assert (out.remaining() >= bindings.getSerializedSize());
+
+        out.putInt(VERSION);
+        out.putInt(bindings.mBindings.size());
+        for (Binding b : bindings.mBindings) {
+            out.put((byte) b.mUIDPrefix.length);
+            out.put(b.mUIDPrefix);
+            out.putInt(b.mATQA);
+            out.putInt(b.mSAK);
+            out.put((byte) b.mKeys.getSectorCount());
+            for (int s = 0; s < b.mKeys.getSectorCount(); ++s) {
+                out.putLong(b.mKeys.getPackedKeyA(s));
+                out.putLong(b.mKeys.getPackedKeyB(s));
+            }
+        }
+    }
+}
@@ -19,13 +19,12 @@
 
 package org.graboid;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -34,36 +33,47 @@ import android.os.Parcelable;
  * This class represents the keys used to read and write a Mifare Classic tag.
  * 
  * It's a mapping between the sectors of a card and access keys. There are two
- * keys (A & B) per sector.
+ * keys (A & B) per sector. Keys are stored packed in the low 48 bits of a
+ * long, so a key chain is a single primitive array.
  */
 public class KeyChain implements Parcelable {
     public final static int KEY_SIZE = 6;
     private final static int A_KEY = 0;
     private final static int B_KEY = 1;
 
-    private final static byte[] DEFAULT_KEY = new byte[6];
+    private final static byte[] HEX = "0123456789abcdef".getBytes();
+    private final static byte[] PADDING = "#PADINGPADINGPADINGPADING\n".getBytes();
 
-    // [A|B][sector][key data]
-    private byte[][][] mKeys;
+    /**
+     * Number of bytes of a serialized key chain: one line per sector of the
+     * largest tag type
+     */
+    public final static int SERIALIZED_SIZE = TagType.MFC_4k.getSectorCount() * (KEY_SIZE * 4 + 2);
+
+    // [sector * 2 + A|B] -> packed key
+    private long[] mKeys;
 
     /**
-     * Create a KeyChain for a given tag type.
+     * Create a KeyChain for a given tag type. All keys are zero.
      * 
      * @param tagType
      */
     public KeyChain(TagType tagType) {
-        mKeys = new byte[2][tagType.getSectorCount()][];
-        for (int i = 0; i < tagType.getSectorCount(); ++i) {
-            mKeys[A_KEY][i] = DEFAULT_KEY;
-            mKeys[B_KEY][i] = DEFAULT_KEY;
-        }
+        mKeys = new long[2 * tagType.getSectorCount()];
+    }
+
+    /**
+     * Create a copy of a KeyChain.
+     */
+    public KeyChain(KeyChain other) {
+        mKeys = other.mKeys.clone();
     }
 
     /**
      * @return the number of sectors (key pairs) in the key chain
      */
     public int getSectorCount() {
-        return mKeys[0].length;
+        return mKeys.length / 2;
     }
 
     /**
@@ -74,8 +84,7 @@ public class KeyChain implements Parcelable {
      * @return The key data (KEY_SIZE byte array)
      */
     public byte[] getKeyA(int sector) {
-        assert (sector >= 0 && sector < getSectorCount());
-        return mKeys[A_KEY][sector];
+        return getKeyA(sector, new byte[KEY_SIZE]);
     }
 
     /**
@@ -86,8 +95,51 @@ public class KeyChain implements Parcelable {
      * @return The key data (KEY_SIZE byte array)
      */
     public byte[] getKeyB(int sector) {
+        return getKeyB(sector, new byte[KEY_SIZE]);
+    }
+
+    /**
+     * Copy the A key for the given sector into a buffer, without allocating.
+     * 
+     * @param sector
+     *            The sector to request a key for
+     * @param dest
+     *            The buffer to receive the key (KEY_SIZE byte array)
+     * @return dest
+     */
+    public byte[] getKeyA(int sector, byte[] dest) {
+        unpack(getPackedKeyA(sector), dest);
+        return dest;
+    }
+
+    /**
+     * Copy the B key for the given sector into a buffer, without allocating.
+     * 
+     * @param sector
+     *            The sector to request a key for
+     * @param dest
+     *            The buffer to receive the key (KEY_SIZE byte array)
+     * @return dest
+     */
+    public byte[] getKeyB(int sector, byte[] dest) {
+        unpack(getPackedKeyB(sector), dest);
+        return dest;
+    }
+
+    /**
+     * @return The A key for the given sector, packed with pack()
+     */
+    public long getPackedKeyA(int sector) {
+        assert (sector >= 0 && sector < getSectorCount());
+        return mKeys[sector * 2 + A_KEY];
+    }
+
+    /**
+     * @return The B key for the given sector, packed with pack()
+     */
+    public long getPackedKeyB(int sector) {
         assert (sector >= 0 && sector < getSectorCount());
-        return mKeys[B_KEY][sector];
+        return mKeys[sector * 2 + B_KEY];
     }
 
     /**
@@ -99,9 +151,7 @@ public class KeyChain implements Parcelable {
      *            The new key (KEY_SIZE byte array)
      */
     public void setKeyA(int sector, byte[] key) {
-        assert (sector >= 0 && sector < getSectorCount());
-        assert (key != null && key.length == KEY_SIZE);
-        mKeys[A_KEY][sector] = key;
+        setKeyA(sector, pack(key));
     }
 
     /**
@@ -113,9 +163,73 @@ public class KeyChain implements Parcelable {
      *            The new key (KEY_SIZE byte array)
      */
     public void setKeyB(int sector, byte[] key) {
+        setKeyB(sector, pack(key));
+    }
+
+    /**
+     * Set the A key
+     * 
+     * @param sector
+     *            The sector to set a key for
+     * @param key
+     *            The new key, packed with pack()
+     */
+    public void setKeyA(int sector, long key) {
+        assert (sector >= 0 && sector < getSectorCount());
+        mKeys[sector * 2 + A_KEY] = key;
+    }
+
+    /**
+     * Set the B key
+     * 
+     * @param sector
+     *            The sector to set a key for
+     * @param key
+     *            The new key, packed with pack()
+     */
+    public void setKeyB(int sector, long key) {
         assert (sector >= 0 && sector < getSectorCount());
+        mKeys[sector * 2 + B_KEY] = key;
+    }
+
+    /**
+     * Overwrite all keys with zeros, e.g. before dropping a copy that
+     * shouldn't linger in memory.
+     */
+    public void wipe() {
+        Arrays.fill(mKeys, 0);
+    }
+
+    /**
+     * Pack a KEY_SIZE byte key into the low 48 bits of a long.
+     */
+    public static long pack(byte[] key) {
         assert (key != null && key.length == KEY_SIZE);
-        mKeys[B_KEY][sector] = key;
+        long packed = 0;
+        for (int i = 0; i < KEY_SIZE; ++i)
+            packed = (packed << 8) | (key[i] & 0xFF);
+        return packed;
+    }
+
+    /**
+     * Unpack a key packed with pack() into a KEY_SIZE byte buffer.
+     */
+    public static void unpack(long key, byte[] dest) {
+        assert (dest != null && dest.length == KEY_SIZE);
+        for (int i = KEY_SIZE - 1; i >= 0; --i) {
+            dest[i] = (byte) key;
+            key >>>= 8;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KeyChain && Arrays.equals(mKeys, ((KeyChain) o).mKeys);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mKeys);
     }
 
     /**
@@ -131,37 +245,56 @@ public class KeyChain implements Parcelable {
      * @throws IOException
      */
     public static KeyChain Read(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[SERIALIZED_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+            data.write(buffer, 0, read);
+
+        return Read(ByteBuffer.wrap(data.toByteArray()));
+    }
+
+    /**
+     * De-serialize the key chain from a buffer, in the format of
+     * Read(InputStream), and return a matching KeyChain instance.
+     * 
+     * @param in
+     *            The buffer containing the key data, from its position.
+     * @return The new de-serialized keychain instance
+     * @throws IOException
+     */
+    public static KeyChain Read(ByteBuffer in) throws IOException {
 
         int maxSectors = TagType.MFC_4k.getSectorCount();
         int sector = 0;
-        byte[][][] data = new byte[2][maxSectors][KEY_SIZE];
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        long[] data = new long[2 * maxSectors];
 
         // Start parsing line by line
-        String line = reader.readLine();
-        while (line != null && sector < maxSectors) {
-            line = line.trim();
+        while (in.hasRemaining() && sector < maxSectors) {
+            int start = in.position();
+            int end = start;
+            while (end < in.limit() && in.get(end) != '\n')
+                ++end;
+            in.position(end < in.limit() ? end + 1 : end);
+
+            // Trim white space
+            while (start < end && in.get(start) <= ' ')
+                ++start;
+            while (end > start && in.get(end - 1) <= ' ')
+                --end;
 
             // Skip comments and empty lines
-            if (line.length() == 0 || line.startsWith("#")) {
-                line = reader.readLine();
+            if (start == end || in.get(start) == '#')
                 continue;
-            }
 
-            // Split A|B keys
-            String[] ab = line.split(" ");
-            if (ab.length != 2 || ab[0].length() != KEY_SIZE * 2 || ab[1].length() != KEY_SIZE * 2)
+            // A key, one space, B key
+            if (end - start != KEY_SIZE * 4 + 1 || in.get(start + KEY_SIZE * 2) != ' ')
                 throw new IOException("Invalid key file format");
 
-            // Read byte by byte
-            for (int i = 0; i < KEY_SIZE; ++i) {
-                data[A_KEY][sector][i] = (byte) Integer.parseInt(ab[A_KEY].substring(i * 2, (i + 1) * 2), 16);
-                data[B_KEY][sector][i] = (byte) Integer.parseInt(ab[B_KEY].substring(i * 2, (i + 1) * 2), 16);
-            }
+            data[sector * 2 + A_KEY] = parseKey(in, start);
+            data[sector * 2 + B_KEY] = parseKey(in, start + KEY_SIZE * 2 + 1);
 
             ++sector;
-            line = reader.readLine();
         }
 
         // Move the data in to a KeyChain object
@@ -170,11 +303,23 @@ public class KeyChain implements Parcelable {
             throw new IOException("Invalid key file; illegal key number");
 
         KeyChain k = new KeyChain(type);
-        k.mKeys = data;
+        System.arraycopy(data, 0, k.mKeys, 0, k.mKeys.length);
 
         return k;
     }
 
+    // Parse KEY_SIZE * 2 hex digits starting at an offset
+    private static long parseKey(ByteBuffer line, int offset) throws IOException {
+        long key = 0;
+        for (int i = offset; i < offset + KEY_SIZE * 2; ++i) {
+            int digit = Character.digit(line.get(i), 16);
+            if (digit < 0)
+                throw new IOException("Invalid key file format");
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
     /**
      * Serialize the key chain and write it to an output stream.
      * 
@@ -189,23 +334,47 @@ public class KeyChain implements Parcelable {
      * @throws IOException
      */
     public static void Write(KeyChain k, OutputStream out) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(SERIALIZED_SIZE);
+        Write(k, data);
+
+        out.write(data.array(), 0, data.position());
+        out.close();
+    }
+
+    /**
+     * Serialize the key chain into a buffer, padded like Write(KeyChain,
+     * OutputStream).
+     * 
+     * @param k
+     *            The key chain to serialize
+     * @param out
+     *            The buffer to receive the data, with at least SERIALIZED_SIZE
+     *            bytes remaining
+     */
+    public static void Write(KeyChain k, ByteBuffer out) {
+        assert (out.remaining() >= SERIALIZED_SIZE);
 
         // Write each sector: A[spc]B[nl]
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
         for (int i = 0; i < k.getSectorCount(); ++i) {
-            for (byte b : k.getKeyA(i))
-                writer.write(String.format("%02x", b));
-            writer.write(" ");
-            for (byte b : k.getKeyB(i))
-                writer.write(String.format("%02x", b));
-            writer.write("\n");
+            formatKey(k.mKeys[i * 2 + A_KEY], out);
+            out.put((byte) ' ');
+            formatKey(k.mKeys[i * 2 + B_KEY], out);
+            out.put((byte) '\n');
         }
 
         // Pad to 4k tag size
         for (int i = 0; i < TagType.MFC_4k.getSectorCount() - k.getSectorCount(); ++i)
-            writer.write("#PADINGPADINGPADINGPADING\n");
+            out.put(PADDING);
+    }
 
-        writer.close();
+    // Format a key as KEY_SIZE * 2 hex digits
+    private static void formatKey(long key, ByteBuffer out) {
+        int offset = out.position();
+        for (int i = offset + KEY_SIZE * 2 - 1; i >= offset; --i) {
+            out.put(i, HEX[(int) key & 0x0F]);
+            key >>>= 4;
+        }
+        out.position(offset + KEY_SIZE * 2);
     }
 
     // -- Parcelable impl --------------------------------------------
@@ -217,25 +386,17 @@ public class KeyChain implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        int sectorCount = mKeys[0].length;
-        dest.writeInt(sectorCount);
-        for (int i = 0; i < sectorCount; ++i) {
-            dest.writeByteArray(mKeys[A_KEY][i]);
-            dest.writeByteArray(mKeys[B_KEY][i]);
-        }
+        dest.writeLongArray(mKeys);
     }
 
     public static final Parcelable.Creator<KeyChain> CREATOR = new Parcelable.Creator<KeyChain>() {
         public KeyChain createFromParcel(Parcel in) {
-            int sectorCount = in.readInt();
+            long[] keys = in.createLongArray();
 
-            KeyChain keys = new KeyChain(TagType.getType(sectorCount));
-            for (int i = 0; i < sectorCount; ++i) {
-                keys.mKeys[A_KEY][i] = in.createByteArray();
-                keys.mKeys[B_KEY][i] = in.createByteArray();
-            }
+            KeyChain k = new KeyChain(TagType.getType(keys.length / 2));
+            k.mKeys = keys;
 
-            return keys;
+            return k;
         }
 
         public KeyChain[] newArray(int size) {
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * This class holds the parameters used to derive the file encryption key from
+ * the password: algorithm, iteration count and salt.
+ * 
+ * They are stored in a versioned header in the salt file. The original salt
+ * file, a bare CryptoIO.SALT_SIZE byte salt, reads as the legacy parameters.
+ */
+public class KeyDerivation {
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /**
+     * The iteration count of the original, headerless salt file
+     */
+    public static final int LEGACY_ITERATIONS = 100;
+
+    /**
+     * Target time of a key derivation when calibrating, in milliseconds
+     */
+    public static final int TARGET_MILLIS = 300;
+
+    private static final int MAGIC = 0x474B4446; // "GKDF"
+    private static final int VERSION = 1;
+    private static final int SALT_SIZE = 16;
+    private static final int MIN_ITERATIONS = 1000;
+    private static final int MAX_ITERATIONS = 1000000;
+    private static final int PROBE_ITERATIONS = 1000;
+
+    private String mAlgorithm;
+    private int mIterations;
+    private byte[] mSalt;
+
+    public KeyDerivation(String algorithm, int iterations, byte[] salt) {
+        assert (algorithm != null && iterations > 0 && salt != null && salt.length > 0);
+        mAlgorithm = algorithm;
+        mIterations = iterations;
+        mSalt = salt.clone();
+    }
+
+    /**
+     * @return The parameters of a headerless salt file
+     */
+    public static KeyDerivation legacy(byte[] salt) {
+        return new KeyDerivation(ALGORITHM, LEGACY_ITERATIONS, salt);
+    }
+
+    /**
+     * Measure the key derivation on this device and pick the iteration count
+     * that takes about targetMillis, with a new random salt.
+     */
+    public static KeyDerivation calibrate(int targetMillis) throws Exception {
+        byte[] salt = CryptoIO.makeSalt(SALT_SIZE);
+        KeyDerivation probe = new KeyDerivation(ALGORITHM, PROBE_ITERATIONS, salt);
+        char[] password = "calibration".toCharArray();
+
+        // The first run loads the provider, time the second
+        CryptoIO.deriveKey(password, probe);
+        long start = System.nanoTime();
+        CryptoIO.deriveKey(password, probe);
+        long elapsedMicros = Math.max(1, (System.nanoTime() - start) / 1000);
+
+        long iterations = PROBE_ITERATIONS * targetMillis * 1000L / elapsedMicros;
+        iterations = Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+
+        return new KeyDerivation(ALGORITHM, (int) iterations, salt);
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    public byte[] getSalt() {
+        return mSalt.clone();
+    }
+
+    /**
+     * @return true if these are the parameters of a headerless salt file
+     */
+    public boolean isLegacy() {
+        return mSalt.length == CryptoIO.SALT_SIZE && mIterations == LEGACY_ITERATIONS
+                && ALGORITHM.equals(mAlgorithm);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KeyDerivation))
+            return false;
+        KeyDerivation other = (KeyDerivation) o;
+        return mAlgorithm.equals(other.mAlgorithm) && mIterations == other.mIterations
+                && Arrays.equals(mSalt, other.mSalt);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mAlgorithm.hashCode() * 31 + mIterations) * 31 + Arrays.hashCode(mSalt);
+    }
+
+    /**
+     * De-serialize the parameters from a salt file. A file of exactly
+     * CryptoIO.SALT_SIZE bytes is a legacy salt.
+     * 
+     * @param in
+     *            The stream containing the salt file.
+     * @return The key derivation parameters
+     * @throws IOException
+     */
+    public static KeyDerivation Read(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64];
+        int read;
+        while ((read = in.read(chunk)) >= 0)
+            buffer.write(chunk, 0, read);
+        byte[] data = buffer.toByteArray();
+
+        if (data.length == CryptoIO.SALT_SIZE)
+            return legacy(data);
+
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+        if (din.readInt() != MAGIC)
+            throw new IOException("Illegal salt file");
+        if (din.readInt() != VERSION)
+            throw new IOException("Unsupported salt file version");
+
+        String algorithm = din.readUTF();
+        int iterations = din.readInt();
+        byte[] salt = new byte[din.readUnsignedByte()];
+        din.readFully(salt);
+
+        if (iterations <= 0 || salt.length == 0)
+            throw new IOException("Illegal salt file");
+
+        return new KeyDerivation(algorithm, iterations, salt);
+    }
+
+    /**
+     * Serialize the parameters in the versioned header format.
+     * 
+     * @param kdf
+     *            The parameters to serialize
+     * @param out
+     *            The output stream to receive the data
+     * @throws IOException
+     */
+    public static void Write(KeyDerivation kdf, OutputStream out) throws IOException {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeUTF(kdf.mAlgorithm);
+        dout.writeInt(kdf.mIterations);
+        dout.writeByte(kdf.mSalt.length);
+        dout.write(kdf.mSalt);
+        dout.close();
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is a dictionary of candidate keys for recovering the keys of an
+ * unknown tag.
+ * 
+ * Keys are 48-bit values, handled packed in longs and stored as 6 byte
+ * records in a buffer. A compiled dictionary (see KeyDictionaryCompiler) is
+ * memory mapped straight from file; its keys are sorted and indexed by their
+ * first byte. The dictionary learns which keys hit for which sector of a card
+ * family, and offers the likely keys first when the next card of the same
+ * family is tried.
+ */
+public class KeyDictionary {
+
+    // Compiled file layout: magic, version, key count, index, keys
+    final static int MAGIC = 0x474B44; // "GKD"
+    final static int VERSION = 1;
+    final static int INDEX_ENTRIES = 257;
+    final static int INDEX_OFFSET = 8;
+    final static int KEYS_OFFSET = INDEX_OFFSET + INDEX_ENTRIES * 4;
+
+    private ByteBuffer mKeys;
+    private ByteBuffer mIndex; // null if the keys aren't sorted
+    private int mCount;
+
+    // family -> per sector and family wide key hit counts
+    private Map<String, FamilyStats> mStats = new HashMap<String, FamilyStats>();
+
+    private static class FamilyStats {
+        Map<Long, Integer> total = new HashMap<Long, Integer>();
+        List<Map<Long, Integer>> sectors = new ArrayList<Map<Long, Integer>>();
+
+        Map<Long, Integer> sector(int sector) {
+            while (sectors.size() <= sector)
+                sectors.add(new HashMap<Long, Integer>());
+            return sectors.get(sector);
+        }
+    }
+
+    /**
+     * Create a dictionary of candidate keys. Duplicates are removed, the first
+     * occurrence keeps its position.
+     * 
+     * @param keys
+     *            The candidate keys, packed with KeyChain.pack()
+     */
+    public KeyDictionary(long[] keys) {
+        Set<Long> seen = new HashSet<Long>();
+        mKeys = ByteBuffer.allocate(keys.length * KeyChain.KEY_SIZE);
+        for (long key : keys) {
+            if (seen.add(key)) {
+                mKeys.putShort((short) (key >>> 32));
+                mKeys.putInt((int) key);
+            }
+        }
+
+        mCount = seen.size();
+    }
+
+    // Create a dictionary over a compiled buffer
+    private KeyDictionary(ByteBuffer compiled, int count) {
+        compiled.position(INDEX_OFFSET);
+        mIndex = compiled.slice();
+        compiled.position(KEYS_OFFSET);
+        mKeys = compiled.slice();
+        mCount = count;
+    }
+
+    /**
+     * Map a compiled dictionary file into memory. Nothing is parsed or copied;
+     * keys are read from the mapping as they are used.
+     * 
+     * @param f
+     *            A file written by KeyDictionaryCompiler
+     * @return The dictionary
+     * @throws IOException
+     */
+    public static KeyDictionary map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < KEYS_OFFSET)
+                throw new IOException("Invalid dictionary; underflow");
+
+            // The mapping stays valid after the file is closed
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int header = buf.getInt(0);
+            if (header >>> 8 != MAGIC || (header & 0xFF) != VERSION)
+                throw new IOException("Invalid dictionary; unknown format");
+
+            int count = buf.getInt(4);
+            if (count < 0 || size != KEYS_OFFSET + (long) count * KeyChain.KEY_SIZE
+                    || buf.getInt(INDEX_OFFSET + (INDEX_ENTRIES - 1) * 4) != count)
+                throw new IOException("Invalid dictionary; illegal size");
+
+            return new KeyDictionary(buf, count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The number of candidate keys
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return The candidate key at an index, in dictionary order
+     */
+    public long getKey(int index) {
+        assert (index >= 0 && index < mCount);
+        int offset = index * KeyChain.KEY_SIZE;
+        return ((long) (mKeys.getShort(offset) & 0xFFFF) << 32) | (mKeys.getInt(offset + 2) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Check if a key is one of the candidates. Compiled dictionaries look the
+     * key up in the index, others are searched linearly.
+     */
+    public boolean contains(long key) {
+        int lo = 0, hi = mCount;
+        if (mIndex != null) {
+            int first = (int) (key >>> 40) & 0xFF;
+            lo = mIndex.getInt(first * 4);
+            hi = mIndex.getInt((first + 1) * 4);
+
+            // Binary search the keys sharing the first byte
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long k = getKey(mid);
+                if (k == key)
+                    return true;
+                if (k < key)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return false;
+        }
+
+        for (int i = lo; i < hi; ++i) {
+            if (getKey(i) == key)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the keys that hit before for a sector of a card family, most likely
+     * first. Keys that hit the sector come first, ordered by hit count, then
+     * keys that hit other sectors of the family.
+     * 
+     * The remaining candidates should then be tried in dictionary order.
+     * 
+     * @param family
+     *            The card family
+     * @param sector
+     *            The sector to find a key for
+     * @return The likely keys, possibly empty
+     */
+    public synchronized long[] getLikelyKeys(String family, int sector) {
+        FamilyStats stats = mStats.get(family);
+        if (stats == null)
+            return new long[0];
+
+        final Map<Long, Integer> sectorHits = stats.sector(sector);
+        final Map<Long, Integer> familyHits = stats.total;
+
+        List<Long> likely = new ArrayList<Long>(familyHits.keySet());
+        Collections.sort(likely, new Comparator<Long>() {
+            @Override
+            public int compare(Long lhs, Long rhs) {
+                int cmp = count(sectorHits, rhs) - count(sectorHits, lhs);
+                return cmp != 0 ? cmp : count(familyHits, rhs) - count(familyHits, lhs);
+            }
+        });
+
+        long[] keys = new long[likely.size()];
+        for (int i = 0; i < keys.length; ++i)
+            keys[i] = likely.get(i);
+        return keys;
+    }
+
+    /**
+     * Record that a key authenticated a sector of a card family.
+     */
+    public synchronized void recordHit(String family, int sector, long key) {
+        FamilyStats stats = mStats.get(family);
+        if (stats == null) {
+            stats = new FamilyStats();
+            mStats.put(family, stats);
+        }
+
+        increment(stats.sector(sector), key, 1);
+        increment(stats.total, key, 1);
+    }
+
+    /**
+     * Record the A and B keys of every sector in a recovered key chain.
+     */
+    public void recordHits(String family, KeyChain keys) {
+        for (int s = 0; s < keys.getSectorCount(); ++s) {
+            recordHit(family, s, keys.getPackedKeyA(s));
+            recordHit(family, s, keys.getPackedKeyB(s));
+        }
+    }
+
+    /**
+     * De-serialize a dictionary from an input stream, keeping the key order.
+     * 
+     * The data format is a text file with one or more keys per line, expressed
+     * in hex and separated with spaces, so that .gkeys files can be used as
+     * dictionaries too. Comments are lines prefixed with '#'
+     * 
+     * Large dictionaries should be compiled with KeyDictionaryCompiler and
+     * mapped instead.
+     * 
+     * @param in
+     *            The stream containing the keys
+     * @return The new dictionary
+     * @throws IOException
+     */
+    public static KeyDictionary Read(InputStream in) throws IOException {
+        long[] keys = KeyDictionaryCompiler.parse(in);
+        if (keys.length == 0)
+            throw new IOException("Invalid dictionary; no keys");
+        return new KeyDictionary(keys);
+    }
+
+    /**
+     * Read learned hit counts into a dictionary. The format is one
+     * "family sector key hits" entry per line.
+     */
+    public static void ReadStats(KeyDictionary d, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 4)
+                continue;
+
+            try {
+                int sector = Integer.parseInt(fields[1]);
+                long key = parseKey(fields[2]);
+                int hits = Integer.parseInt(fields[3]);
+
+                FamilyStats stats = d.mStats.get(fields[0]);
+                if (stats == null) {
+                    stats = new FamilyStats();
+                    d.mStats.put(fields[0], stats);
+                }
+                increment(stats.sector(sector), key, hits);
+                increment(stats.total, key, hits);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid key statistics format");
+            }
+        }
+    }
+
+    /**
+     * Write the learned hit counts of a dictionary to an output stream.
+     */
+    public static void WriteStats(KeyDictionary d, OutputStream out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        // Hits may be recorded while the statistics are saved
+        synchronized (d) {
+            for (Map.Entry<String, FamilyStats> family : d.mStats.entrySet()) {
+                List<Map<Long, Integer>> sectors = family.getValue().sectors;
+                for (int s = 0; s < sectors.size(); ++s) {
+                    for (Map.Entry<Long, Integer> hit : sectors.get(s).entrySet())
+                        writer.write(family.getKey() + " " + s + " " + formatKey(hit.getKey()) + " "
+                                + hit.getValue() + "\n");
+                }
+            }
+        }
+        writer.close();
+    }
+
+    private static long parseKey(String hex) throws IOException {
+        if (hex.length() != KeyChain.KEY_SIZE * 2 || Character.digit(hex.charAt(0), 16) < 0)
+            throw new IOException("Invalid key format");
+        try {
+            return Long.parseLong(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid key format");
+        }
+    }
+
+    private static String formatKey(long key) {
+        return String.format("%012x", key);
+    }
+
+    private static int count(Map<Long, Integer> hits, Long key) {
+        Integer count = hits.get(key);
+        return count != null ? count : 0;
+    }
+
+    private static void increment(Map<Long, Integer> hits, long key, int by) {
+        hits.put(key, count(hits, key) + by);
+    }
+}
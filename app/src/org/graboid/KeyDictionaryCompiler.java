@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * This class compiles text key lists into the binary dictionary format that
+ * KeyDictionary maps into memory.
+ * 
+ * The text is parsed as a byte stream straight into packed keys, without
+ * creating any objects per line or key. The keys are then sorted, duplicates
+ * removed and written after a header and an index of where the keys with each
+ * first byte start.
+ */
+public class KeyDictionaryCompiler {
+
+    /**
+     * Parse a text key list into packed keys, keeping their order.
+     * 
+     * The format is one or more keys per line, expressed in hex and separated
+     * with white space. Comments start with '#' and run to the end of the line.
+     * 
+     * @param in
+     *            The stream containing the key list
+     * @return The packed keys
+     * @throws IOException
+     */
+    public static long[] parse(InputStream in) throws IOException {
+        InputStream buffered = new BufferedInputStream(in);
+
+        long[] keys = new long[1024];
+        int count = 0;
+
+        long key = 0;
+        int digits = 0;
+        boolean comment = false;
+
+        for (int c = buffered.read();; c = buffered.read()) {
+            if (c == '\n' || c == '\r')
+                comment = false;
+            if (comment)
+                continue;
+
+            int digit = c < 0 ? -1 : Character.digit(c, 16);
+            if (digit >= 0) {
+                if (++digits > KeyChain.KEY_SIZE * 2)
+                    throw new IOException("Invalid key format");
+                key = (key << 4) | digit;
+                continue;
+            }
+
+            // End of a key
+            if (digits > 0) {
+                if (digits != KeyChain.KEY_SIZE * 2)
+                    throw new IOException("Invalid key format");
+                if (count == keys.length)
+                    keys = Arrays.copyOf(keys, count * 2);
+                keys[count++] = key;
+                key = 0;
+                digits = 0;
+            }
+
+            if (c < 0)
+                break;
+            if (c == '#')
+                comment = true;
+            else if (!Character.isWhitespace(c))
+                throw new IOException("Invalid key format");
+        }
+
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Compile a text key list into a dictionary file. The file is replaced
+     * once the new dictionary is completely written.
+     * 
+     * @param in
+     *            The stream containing the key list
+     * @param out
+     *            The dictionary file to write
+     * @return The number of unique keys in the dictionary
+     * @throws IOException
+     */
+    public static int compile(InputStream in, File out) throws IOException {
+        long[] keys = parse(in);
+        if (keys.length == 0)
+            throw new IOException("Invalid dictionary; no keys");
+
+        // Sort and remove duplicates in place
+        Arrays.sort(keys);
+        int count = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (count == 0 || keys[i] != keys[count - 1])
+                keys[count++] = keys[i];
+        }
+
+        File tmp = new File(out.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            write(keys, count, dos);
+        } finally {
+            dos.close();
+        }
+
+        if (out.exists() && !out.delete() || !tmp.renameTo(out)) {
+            tmp.delete();
+            throw new IOException("Could not replace dictionary");
+        }
+
+        return count;
+    }
+
+    // Write the header, the first byte index and the keys
+    private static void write(long[] keys, int count, DataOutputStream out) throws IOException {
+        out.writeInt((KeyDictionary.MAGIC << 8) | KeyDictionary.VERSION);
+        out.writeInt(count);
+
+        int k = 0;
+        for (int first = 0; first < KeyDictionary.INDEX_ENTRIES - 1; ++first) {
+            while (k < count && (keys[k] >>> 40) < first)
+                ++k;
+            out.writeInt(k);
+        }
+        out.writeInt(count);
+
+        for (int i = 0; i < count; ++i) {
+            out.writeShort((int) (keys[i] >>> 32));
+            out.writeInt((int) keys[i]);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+import android.nfc.tech.MifareClassic;
+
+public class KeyRecoveryTask extends MifareTask<KeyChain> {
+    private String mFamily;
+    private byte[] mUID;
+
+    public KeyRecoveryTask(DomainState state, TaskFragment fragment) {
+        super(state, fragment);
+    }
+
+    @Override
+    protected KeyChain processMifareTag(MifareClassic mfTag) throws IOException {
+        mFamily = getFamily(mfTag);
+        mUID = mfTag.getTag().getId();
+
+        MifareIO mio = new MifareIO(mfTag, null, this);
+        mio.setCancellationToken(getCancellationToken());
+        return mio.recoverKeys(getDomainState().getDictionary(), mFamily);
+    }
+
+    @Override
+    protected void postProcessResult(KeyChain res) {
+        DomainState ds = getDomainState();
+        if (ds != null && res != null) {
+            ds.setRecoveredKeys(mFamily, res);
+            ds.bindKeys(mUID, KeyBindings.ANY, KeyBindings.ANY);
+        }
+    }
+
+    // Cards of the same size and type tend to share keys
+    private static String getFamily(MifareClassic mfTag) {
+        return "mfc" + mfTag.getType() + "-" + mfTag.getSectorCount();
+    }
+}
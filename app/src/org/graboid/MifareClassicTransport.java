@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+import android.nfc.tech.MifareClassic;
+
+/**
+ * Transport that talks to a physical card through the android NFC stack.
+ */
+public class MifareClassicTransport implements IMifareTransport {
+    private MifareClassic mTag;
+
+    public MifareClassicTransport(MifareClassic tag) {
+        assert (tag != null);
+        mTag = tag;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mTag.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTag.close();
+    }
+
+    @Override
+    public byte[] getUID() {
+        return mTag.getTag().getId();
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mTag.getSectorCount();
+    }
+
+    @Override
+    public int getBlockCountInSector(int sector) {
+        return mTag.getBlockCountInSector(sector);
+    }
+
+    @Override
+    public int sectorToBlock(int sector) {
+        return mTag.sectorToBlock(sector);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sector, byte[] key) throws IOException {
+        return mTag.authenticateSectorWithKeyA(sector, key);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sector, byte[] key) throws IOException {
+        return mTag.authenticateSectorWithKeyB(sector, key);
+    }
+
+    @Override
+    public byte[] readBlock(int block) throws IOException {
+        return mTag.readBlock(block);
+    }
+
+    @Override
+    public void writeBlock(int block, byte[] data) throws IOException {
+        mTag.writeBlock(block, data);
+    }
+}
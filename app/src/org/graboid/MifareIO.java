@@ -20,7 +20,11 @@
 package org.graboid;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
 
 /**
@@ -31,10 +35,31 @@ public class MifareIO {
         void publishProgress(int progress);
     }
 
-    private MifareClassic mTag;
+    // Key plan for a block: either key, key A, key B or no key allows the
+    // operation. KEY_NONE also marks a sector that isn't authenticated.
+    private final static byte KEY_ANY = 0;
+    private final static byte KEY_A = 1;
+    private final static byte KEY_B = 2;
+    private final static byte KEY_NONE = 3;
+
+    private IMifareTransport mTag;
     private KeyChain mKeys;
+    private Tag mLayout;
+
+    // Reusable key buffers, filled from the key chain before each use
+    private final byte[] mKeyA = new byte[KeyChain.KEY_SIZE];
+    private final byte[] mKeyB = new byte[KeyChain.KEY_SIZE];
+
+    // Reusable block buffers for writes and comparisons
+    private final byte[] mBlock = new byte[Tag.BLOCK_SIZE];
+    private final byte[] mCurrent = new byte[Tag.BLOCK_SIZE];
+
+    // The key the current sector is authenticated with, KEY_NONE at the start
+    // of each sector
+    private byte mAuthKey = KEY_NONE;
 
     private IProgressListener mProgressListener;
+    private CancellationToken mCancellation;
 
     /**
      * Create an instance of the helper class to interface a tag using some
@@ -46,13 +71,57 @@ public class MifareIO {
      *            The keys to use in communication.
      */
     public MifareIO(MifareClassic tag, KeyChain keys, IProgressListener progressListener) {
-        assert (tag != null && keys != null);
+        this(new MifareClassicTransport(tag), keys, progressListener);
+    }
+
+    /**
+     * Create an instance of the helper class to interface a tag through a
+     * transport, e.g. a simulated card.
+     * 
+     * @param tag
+     *            The transport to the tag
+     * @param keys
+     *            The keys to use in communication. May be null if the keys
+     *            are recovered with recoverKeys.
+     */
+    public MifareIO(IMifareTransport tag, KeyChain keys, IProgressListener progressListener) {
+        assert (tag != null);
 
         mTag = tag;
         mKeys = keys;
         mProgressListener = progressListener;
     }
 
+    /**
+     * Set a known dump of the tag, e.g. a previous read. The access conditions
+     * in its sector trailers are used to plan which key to authenticate each
+     * block with, so no authentication is wasted on a key that isn't allowed
+     * to do the operation.
+     * 
+     * The layout must hold the access conditions currently on the card, never
+     * those of a dump about to be written. Without a layout writes try B key,
+     * then A key.
+     * 
+     * @param layout
+     *            A dump of the tag, or null if unknown
+     */
+    public void setLayout(Tag layout) {
+        mLayout = layout;
+    }
+
+    /**
+     * Set a token that stops the operations when cancelled. The token is
+     * checked before each block (before each key candidate when recovering
+     * keys), and a cancelled operation closes the connection and throws an
+     * IOException.
+     * 
+     * @param cancellation
+     *            The token, or null if the operations can't be cancelled
+     */
+    public void setCancellationToken(CancellationToken cancellation) {
+        mCancellation = cancellation;
+    }
+
     /**
      * Read all blocks from the Mifare tag and return the data in a Tag object.
      * 
@@ -60,45 +129,45 @@ public class MifareIO {
      * @throws IOException
      */
     public Tag read() throws IOException {
+        return read(null);
+    }
+
+    /**
+     * Read the blocks from the Mifare tag that aren't completed in a
+     * checkpoint. The checkpoint is updated after each sector, so if the tag
+     * is lost it holds the data read so far and the read can be resumed.
+     * 
+     * @param checkpoint
+     *            A READ checkpoint for this tag, or null to read everything
+     * @return A Tag object containing the data of the Mifare tag.
+     * @throws IOException
+     */
+    public Tag read(SessionCheckpoint checkpoint) throws IOException {
+        assert (checkpoint == null || checkpoint.getOperation() == SessionCheckpoint.Operation.READ);
 
         int sectors = mTag.getSectorCount();
-        Tag t = new Tag(TagType.getType(sectors));
+        Tag t = checkpoint != null ? checkpoint.getTag() : new Tag(TagType.getType(sectors));
 
+        checkKeys();
         if (t.getSectorCount() > mKeys.getSectorCount())
             throw new IOException("Too few keys");
 
+        byte[] plan = planKeys(mLayout, false);
+
         mTag.connect();
 
         try {
 
             for (int s = 0; s < sectors; ++s) {
 
-                byte[] aKey = mKeys.getKeyA(s);
-                byte[] bKey = mKeys.getKeyB(s);
-
-                // Authenticate for each sector (try A key, then B key)
-                if (!mTag.authenticateSectorWithKeyA(s, aKey) && !mTag.authenticateSectorWithKeyB(s, bKey))
-                    throw new IOException("Auth error");
-
-                // Read every block of the sector
-                int blockOffset = mTag.sectorToBlock(s);
-                int lastBlock = blockOffset + mTag.getBlockCountInSector(s);
-                for (int b = blockOffset; b < lastBlock; ++b) {
-                    byte[] readBuffer = mTag.readBlock(b);
-
-                    // Manually transfer key data to tag since it is usually not
-                    // readable
-                    if (b == lastBlock - 1) {
-                        for (int i = 0; i < Tag.KEY_SIZE; ++i) {
-                            readBuffer[i] = aKey[i];
-                            readBuffer[Tag.BLOCK_SIZE - Tag.KEY_SIZE + i] = bKey[i];
-                        }
-                    }
+                if (checkpoint != null && checkpoint.isSectorDone(s))
+                    continue;
 
-                    t.setBlock(b, readBuffer);
-                    if (mProgressListener != null)
-                        mProgressListener.publishProgress((100 * b) / t.getBlockCount());
-                }
+                mAuthKey = KEY_NONE;
+                readSector(t, s, plan);
+
+                if (checkpoint != null)
+                    checkpoint.setSectorDone(s);
             }
 
             return t;
@@ -108,6 +177,38 @@ public class MifareIO {
         }
     }
 
+    // Read every block of a sector into a tag. Authenticate with the planned
+    // key, or try A key, then B key
+    private void readSector(Tag t, int s, byte[] plan) throws IOException {
+        int blockOffset = mTag.sectorToBlock(s);
+        int lastBlock = blockOffset + mTag.getBlockCountInSector(s);
+        for (int b = blockOffset; b < lastBlock; ++b) {
+            checkCancelled();
+
+            // Leave blocks no key can read empty
+            if (plan[b] == KEY_NONE)
+                continue;
+
+            mAuthKey = authenticate(s, plan[b], mAuthKey, false);
+            byte[] readBuffer = mTag.readBlock(b);
+
+            // Manually transfer key data to tag since it is usually not
+            // readable
+            if (b == lastBlock - 1) {
+                byte[] aKey = mKeys.getKeyA(s, mKeyA);
+                byte[] bKey = mKeys.getKeyB(s, mKeyB);
+                for (int i = 0; i < Tag.KEY_SIZE; ++i) {
+                    readBuffer[i] = aKey[i];
+                    readBuffer[Tag.BLOCK_SIZE - Tag.KEY_SIZE + i] = bKey[i];
+                }
+            }
+
+            t.setBlock(b, readBuffer);
+            if (mProgressListener != null)
+                mProgressListener.publishProgress((100 * b) / t.getBlockCount());
+        }
+    }
+
     /**
      * Write all the blocks in a Tag to the Mifare tag.
      * 
@@ -115,39 +216,390 @@ public class MifareIO {
      * @throws IOException
      */
     public void write(Tag t) throws IOException {
+        write(t, false);
+    }
+
+    /**
+     * Write the blocks in a Tag to the Mifare tag.
+     * 
+     * In differential mode each block is read from the card first and only
+     * written if it differs from the Tag. Reads are much cheaper than writes,
+     * so replaying a dump that only changed in a few blocks is a lot faster.
+     * 
+     * @param t
+     *            The tag data to write
+     * @param differential
+     *            true to skip blocks that already match the tag data
+     * @return The number of blocks that were skipped since they already matched
+     * @throws IOException
+     */
+    public int write(Tag t, boolean differential) throws IOException {
+        return write(t, differential, null);
+    }
 
+    /**
+     * Write the blocks in a Tag to the sectors of the Mifare tag that aren't
+     * completed in a checkpoint. The checkpoint is updated after each sector,
+     * so if the tag is lost the write can be resumed.
+     * 
+     * @param t
+     *            The tag data to write
+     * @param differential
+     *            true to skip blocks that already match the tag data
+     * @param checkpoint
+     *            A WRITE checkpoint for this tag, or null to write everything
+     * @return The number of blocks that were skipped since they already matched
+     * @throws IOException
+     */
+    public int write(Tag t, boolean differential, SessionCheckpoint checkpoint) throws IOException {
+        assert (checkpoint == null || checkpoint.getOperation() == SessionCheckpoint.Operation.WRITE);
+
+        checkKeys();
         if (t.getSectorCount() > mKeys.getSectorCount())
             throw new IOException("Too few keys");
 
+        byte[] plan = planKeys(mLayout, true);
+        checkWritable(t, plan, checkpoint);
+
         mTag.connect();
 
         int sectors = mTag.getSectorCount();
+        int skipped = 0;
 
         try {
 
             for (int s = 0; s < sectors; ++s) {
 
-                // Authenticate for each sector (try B key, then A key)
-                if (!mTag.authenticateSectorWithKeyB(s, mKeys.getKeyB(s))
-                        && !mTag.authenticateSectorWithKeyA(s, mKeys.getKeyA(s)))
-                    throw new IOException("Auth error");
+                if (checkpoint != null && checkpoint.isSectorDone(s))
+                    continue;
 
-                // Write to tag. Skip block 0 and the trailer of each sector
-                int blockOffset = mTag.sectorToBlock(s);
-                int lastBlock = blockOffset + mTag.getBlockCountInSector(s);
+                mAuthKey = KEY_NONE;
+                AccessConditions ac = layoutConditions(mLayout, s);
+                skipped += writeSector(t, s, plan, ac, differential, null);
 
-                // Skip block 0
-                blockOffset = blockOffset == 0 ? 1 : blockOffset;
+                if (checkpoint != null)
+                    checkpoint.setSectorDone(s);
+            }
+        } finally {
+            mTag.close();
+        }
 
-                for (int b = blockOffset; b < lastBlock; ++b) {
-                    mTag.writeBlock(b, t.getBlock(b));
-                    if (mProgressListener != null)
-                        mProgressListener.publishProgress((100 * b) / t.getBlockCount());
+        return skipped;
+    }
+
+    // Write the blocks of a sector, except block 0. The access conditions of
+    // the sector are null if unknown. In differential mode blocks are compared
+    // with the card data in current if known, or read from the card first.
+    // Return the number of blocks skipped.
+    private int writeSector(Tag t, int s, byte[] plan, AccessConditions ac, boolean differential, Tag current)
+            throws IOException {
+        int sectorStart = mTag.sectorToBlock(s);
+        int lastBlock = sectorStart + mTag.getBlockCountInSector(s);
+
+        // Skip block 0
+        int blockOffset = sectorStart == 0 ? 1 : sectorStart;
+
+        boolean compare = differential;
+        int skipped = 0;
+        for (int b = blockOffset; b < lastBlock; ++b) {
+            checkCancelled();
+
+            // No key can write the block, but it already holds the data, see
+            // checkWritable()
+            if (plan[b] == KEY_NONE) {
+                ++skipped;
+                continue;
+            }
+
+            mAuthKey = authenticate(s, plan[b], mAuthKey, true);
+            byte[] data = t.getBlock(b, mBlock);
+            boolean matches = false;
+
+            // Don't compare blocks the write key isn't allowed to read
+            int group = AccessConditions.getGroup(b - sectorStart, lastBlock - sectorStart);
+            boolean readable = ac == null || ac.canRead(group, mAuthKey == KEY_B);
+
+            if (compare && current != null) {
+                matches = sameBlock(s, b == lastBlock - 1, current.getBlock(b, mCurrent), data);
+            } else if (compare && readable) {
+                try {
+                    matches = blockMatches(s, b, b == lastBlock - 1, data);
+                } catch (IOException e) {
+                    // Not readable with the write key. The failed read
+                    // halted the tag, so authenticate again and write
+                    // the rest of the sector unconditionally.
+                    compare = false;
+                    mAuthKey = authenticate(s, plan[b], KEY_NONE, true);
                 }
             }
+
+            if (matches)
+                ++skipped;
+            else
+                writeBlock(s, b, plan[b], data);
+
+            if (mProgressListener != null)
+                mProgressListener.publishProgress((100 * b) / t.getBlockCount());
+        }
+
+        return skipped;
+    }
+
+    // Write a block. If the access conditions are unknown the key in use may
+    // not be allowed to write it, so the other key is tried before failing.
+    private void writeBlock(int sector, int block, byte planned, byte[] data) throws IOException {
+        try {
+            mTag.writeBlock(block, data);
+        } catch (TagLostException e) {
+            throw e;
+        } catch (IOException e) {
+            if (planned != KEY_ANY)
+                throw e;
+
+            // The denied write halted the tag
+            byte other = mAuthKey == KEY_A ? KEY_B : KEY_A;
+            mAuthKey = authenticate(sector, other, KEY_NONE, true);
+            mTag.writeBlock(block, data);
+        }
+    }
+
+    // Make sure every block the access conditions on the card don't allow to
+    // write already holds the data, before anything is written. Skipping such
+    // a block and writing the trailer could lock the card with the data
+    // missing.
+    private void checkWritable(Tag t, byte[] plan, SessionCheckpoint checkpoint) throws IOException {
+        for (int s = 0; s < mTag.getSectorCount(); ++s) {
+            if (checkpoint != null && checkpoint.isSectorDone(s))
+                continue;
+
+            int sectorStart = mTag.sectorToBlock(s);
+            int lastBlock = sectorStart + mTag.getBlockCountInSector(s);
+            for (int b = Math.max(sectorStart, 1); b < lastBlock; ++b) {
+                // Only planned from a layout
+                if (plan[b] == KEY_NONE && !sameBlock(s, b == lastBlock - 1, mLayout.getBlock(b), t.getBlock(b)))
+                    throw new IOException("Block " + b + " is not writable");
+            }
+        }
+    }
+
+    // A MifareIO for key recovery has no keys, and the keys of the domain
+    // state may be dropped while a task runs
+    private void checkKeys() throws IOException {
+        if (mKeys == null)
+            throw new IOException("No keys");
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancellation != null)
+            mCancellation.check();
+    }
+
+    // Make sure the sector is authenticated with a key that allows the
+    // operation planned for a block, and return the key in use. Without a plan
+    // the sector is authenticated once, trying A key then B key for reads and
+    // B key then A key for writes.
+    private byte authenticate(int sector, byte planned, byte current, boolean write) throws IOException {
+        if (current != KEY_NONE && (planned == KEY_ANY || planned == current))
+            return current;
+
+        boolean preferB = planned == KEY_ANY ? write : planned == KEY_B;
+        byte[] aKey = mKeys.getKeyA(sector, mKeyA);
+        byte[] bKey = mKeys.getKeyB(sector, mKeyB);
+
+        if (preferB) {
+            if (mTag.authenticateSectorWithKeyB(sector, bKey))
+                return KEY_B;
+            if (mTag.authenticateSectorWithKeyA(sector, aKey))
+                return KEY_A;
+        } else {
+            if (mTag.authenticateSectorWithKeyA(sector, aKey))
+                return KEY_A;
+            if (mTag.authenticateSectorWithKeyB(sector, bKey))
+                return KEY_B;
+        }
+
+        throw new IOException("Auth error");
+    }
+
+    // Decode the access conditions of a sector in a layout, null if unknown
+    private AccessConditions layoutConditions(Tag layout, int sector) {
+        if (layout == null || layout.getSectorCount() != mTag.getSectorCount())
+            return null;
+
+        int trailer = mTag.sectorToBlock(sector) + mTag.getBlockCountInSector(sector) - 1;
+        return AccessConditions.decode(layout.getBlock(trailer));
+    }
+
+    // Plan the key to use for each block of the tag from the access conditions
+    // in a layout. Each sector uses the key that allows the operation on most
+    // of its blocks, so a key switch within a sector is only planned when the
+    // access conditions require it.
+    private byte[] planKeys(Tag layout, boolean write) {
+        int sectors = mTag.getSectorCount();
+        byte[] plan = new byte[TagType.getType(sectors).getBlockCount()];
+
+        for (int s = 0; s < sectors; ++s) {
+            AccessConditions ac = layoutConditions(layout, s);
+            if (ac == null)
+                continue; // Unknown, KEY_ANY
+
+            int blockOffset = mTag.sectorToBlock(s);
+            int blocks = mTag.getBlockCountInSector(s);
+
+            // Find the keys allowed for each block
+            int votesA = 0, votesB = 0;
+            boolean[][] allowed = new boolean[blocks][2];
+            for (int i = 0; i < blocks; ++i) {
+                int group = AccessConditions.getGroup(i, blocks);
+                for (int k = 0; k < 2; ++k) {
+                    boolean keyB = k == 1;
+                    if (!write)
+                        allowed[i][k] = ac.canRead(group, keyB);
+                    else if (group != AccessConditions.TRAILER)
+                        allowed[i][k] = ac.canWrite(group, keyB);
+                    else
+                        allowed[i][k] = trailerWriteParts(ac, keyB) > 0
+                                && trailerWriteParts(ac, keyB) >= trailerWriteParts(ac, !keyB);
+                }
+
+                // Block 0 is never written
+                if (write && blockOffset + i == 0)
+                    continue;
+                votesA += allowed[i][0] ? 1 : 0;
+                votesB += allowed[i][1] ? 1 : 0;
+            }
+
+            boolean sectorKeyB = votesA == votesB ? write : votesB > votesA;
+            for (int i = 0; i < blocks; ++i) {
+                boolean preferred = allowed[i][sectorKeyB ? 1 : 0];
+                boolean other = allowed[i][sectorKeyB ? 0 : 1];
+                if (preferred)
+                    plan[blockOffset + i] = sectorKeyB ? KEY_B : KEY_A;
+                else if (other)
+                    plan[blockOffset + i] = sectorKeyB ? KEY_A : KEY_B;
+                else
+                    plan[blockOffset + i] = KEY_NONE;
+            }
+        }
+
+        return plan;
+    }
+
+    // The number of trailer parts (key A, access bits, key B) a key may write
+    private static int trailerWriteParts(AccessConditions ac, boolean keyB) {
+        return (ac.canWriteKeyA(keyB) ? 1 : 0) + (ac.canWriteAccessBits(keyB) ? 1 : 0) + (ac.canWriteKeyB(keyB) ? 1 : 0);
+    }
+
+    // Compare a block on the card with the data to write. The keys of a
+    // trailer can't be read back, so a trailer only matches if the data to
+    // write keeps the keys that were used to authenticate.
+    private boolean blockMatches(int sector, int block, boolean trailer, byte[] data) throws IOException {
+        return sameBlock(sector, trailer, mTag.readBlock(block), data);
+    }
+
+    private boolean sameBlock(int sector, boolean trailer, byte[] current, byte[] data) {
+        if (!trailer)
+            return Arrays.equals(current, data);
+
+        byte[] aKey = mKeys.getKeyA(sector, mKeyA);
+        byte[] bKey = mKeys.getKeyB(sector, mKeyB);
+        for (int i = 0; i < Tag.KEY_SIZE; ++i) {
+            if (data[i] != aKey[i] || data[Tag.BLOCK_SIZE - Tag.KEY_SIZE + i] != bKey[i])
+                return false;
+        }
+        for (int i = Tag.KEY_SIZE; i < Tag.BLOCK_SIZE - Tag.KEY_SIZE; ++i) {
+            if (data[i] != current[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the A and B keys of every sector by trying the candidates in a key
+     * dictionary. For each sector the keys that hit before for the card family
+     * are tried first, then the rest of the dictionary. The A key found for a
+     * sector is tried first as its B key.
+     * 
+     * @param dictionary
+     *            The candidate keys
+     * @param family
+     *            The card family, used to order the candidates
+     * @return A key chain with the keys of every sector
+     * @throws IOException
+     *             If the tag is lost or a sector key isn't in the dictionary
+     */
+    public KeyChain recoverKeys(KeyDictionary dictionary, String family) throws IOException {
+
+        int sectors = mTag.getSectorCount();
+        KeyChain k = new KeyChain(TagType.getType(sectors));
+
+        mTag.connect();
+
+        try {
+            for (int s = 0; s < sectors; ++s) {
+                long[] likely = dictionary.getLikelyKeys(family, s);
+
+                long aKey = findKey(s, false, dictionary, likely, -1);
+                if (aKey < 0)
+                    throw new IOException("No A key for sector " + s);
+
+                long bKey = findKey(s, true, dictionary, likely, aKey);
+                if (bKey < 0)
+                    throw new IOException("No B key for sector " + s);
+
+                k.setKeyA(s, aKey);
+                k.setKeyB(s, bKey);
+
+                if (mProgressListener != null)
+                    mProgressListener.publishProgress((100 * (s + 1)) / sectors);
+            }
         } finally {
             mTag.close();
         }
+
+        return k;
+    }
+
+    // Try a first guess, then the likely keys, then the whole dictionary
+    // (skipping the keys already tried). Return the packed key that
+    // authenticates, or -1.
+    private long findKey(int sector, boolean keyB, KeyDictionary dictionary, long[] likely, long guess)
+            throws IOException {
+        if (guess >= 0 && tryKey(sector, keyB, guess))
+            return guess;
+
+        for (long candidate : likely) {
+            if (candidate != guess && tryKey(sector, keyB, candidate))
+                return candidate;
+        }
+
+        for (int i = 0; i < dictionary.size(); ++i) {
+            long candidate = dictionary.getKey(i);
+            if (candidate == guess || contains(likely, candidate))
+                continue;
+            if (tryKey(sector, keyB, candidate))
+                return candidate;
+        }
+
+        return -1;
+    }
+
+    private boolean tryKey(int sector, boolean keyB, long candidate) throws IOException {
+        checkCancelled();
+        if (keyB) {
+            KeyChain.unpack(candidate, mKeyB);
+            return mTag.authenticateSectorWithKeyB(sector, mKeyB);
+        }
+        KeyChain.unpack(candidate, mKeyA);
+        return mTag.authenticateSectorWithKeyA(sector, mKeyA);
+    }
+
+    private static boolean contains(long[] keys, long key) {
+        for (long k : keys) {
+            if (k == key)
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -159,26 +611,284 @@ public class MifareIO {
      * @throws IOException
      */
     public boolean testKeys() throws IOException {
+        return newSession().testKeys().run().keysValid();
+    }
+
+    /**
+     * Check if the Mifare tag matches a dump. Each sector is authenticated and
+     * its blocks read and compared with the dump. The keys of the trailers
+     * can't be read back, so they are compared with the key chain instead.
+     * 
+     * @param expected
+     *            The dump the tag should match
+     * @param stopAtMismatch
+     *            true to stop at the first block that doesn't match, e.g. to
+     *            check if the tag still matches, false to find every block
+     *            that doesn't
+     * @return The blocks that don't match, in ascending order. Empty if the
+     *         tag matches the dump.
+     * @throws IOException
+     */
+    public int[] verify(Tag expected, boolean stopAtMismatch) throws IOException {
+        return newSession().verify(expected, stopAtMismatch).run().getMismatches();
+    }
+
+    /**
+     * Start a session of operations that run in a single connection to the
+     * tag, see Session.
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * A pipeline of operations on the tag that runs in one connection.
+     * 
+     * Instead of running each operation over the whole tag, the session runs
+     * all of them sector by sector, in the order they were added. A sector is
+     * authenticated once, and again only when an operation needs the other
+     * key. Blocks read in a sector are reused by later operations on it, e.g.
+     * a verify after a read compares the read data without reading the card
+     * again.
+     * 
+     * Sessions don't keep checkpoints; use read() and write() to resume an
+     * interrupted operation. That is why the read and write tasks don't run
+     * as sessions, only verify() and testKeys() do.
+     */
+    public class Session {
+        private static final int TEST_KEYS = 0;
+        private static final int READ = 1;
+        private static final int VERIFY = 2;
+        private static final int WRITE = 3;
+
+        private int[] mSteps = new int[4];
+        private int mStepCount;
+
+        private Tag mExpected;
+        private boolean mStopAtMismatch;
+        private Tag mData;
+        private boolean mDifferential;
+
+        private Tag mRead;
+        private boolean mKeysValid = true;
+        private List<Integer> mMismatches = new ArrayList<Integer>();
+        private int mSkipped;
+
+        private Session() {
+        }
+
+        /**
+         * Authenticate every sector with both the A and the B key. The session
+         * stops at the first sector a key fails for, see keysValid().
+         */
+        public Session testKeys() {
+            return addStep(TEST_KEYS);
+        }
+
+        /**
+         * Read all blocks of the tag, see getTag().
+         */
+        public Session read() {
+            return addStep(READ);
+        }
+
+        /**
+         * Compare the blocks of the tag with a dump, see getMismatches(). The
+         * blocks read earlier in the session are compared without reading
+         * them again, unless a write came in between.
+         */
+        public Session verify(Tag expected) {
+            return verify(expected, false);
+        }
 
-        // Tag and key sector count mismatch.
-        // Need at least as many keys as there are sectors.
-        if (mTag.getSectorCount() > mKeys.getSectorCount())
+        /**
+         * Compare the blocks of the tag with a dump, see verify(Tag).
+         * 
+         * @param expected
+         *            The dump the tag should match
+         * @param stopAtMismatch
+         *            true to stop the session at the first block that doesn't
+         *            match, false to compare every block
+         */
+        public Session verify(Tag expected, boolean stopAtMismatch) {
+            assert (expected != null);
+            mExpected = expected;
+            mStopAtMismatch = stopAtMismatch;
+            return addStep(VERIFY);
+        }
+
+        /**
+         * Write the blocks of a dump to the tag, see MifareIO.write(). In
+         * differential mode blocks read earlier in the session aren't read
+         * again for the comparison.
+         */
+        public Session write(Tag t, boolean differential) {
+            assert (t != null);
+            mData = t;
+            mDifferential = differential;
+            return addStep(WRITE);
+        }
+
+        private Session addStep(int step) {
+            for (int i = 0; i < mStepCount; ++i)
+                assert (mSteps[i] != step);
+            mSteps[mStepCount++] = step;
+            return this;
+        }
+
+        /**
+         * Connect to the tag and run the operations.
+         * 
+         * @return This session, holding the results
+         * @throws IOException
+         */
+        public Session run() throws IOException {
+            checkKeys();
+
+            int sectors = mTag.getSectorCount();
+            if (sectors > mKeys.getSectorCount()) {
+                if (hasStep(TEST_KEYS)) {
+                    mKeysValid = false;
+                    return this;
+                }
+                throw new IOException("Too few keys");
+            }
+
+            if (hasStep(VERIFY) && mExpected.getSectorCount() != sectors)
+                throw new IOException("Tag type mismatch");
+
+            byte[] readPlan = hasStep(READ) || hasStep(VERIFY) ? planKeys(mLayout, false) : null;
+            byte[] writePlan = null;
+            if (hasStep(WRITE)) {
+                writePlan = planKeys(mLayout, true);
+                checkWritable(mData, writePlan, null);
+            }
+            if (hasStep(READ))
+                mRead = new Tag(TagType.getType(sectors));
+
+            mTag.connect();
+
+            try {
+                for (int s = 0; s < sectors; ++s) {
+                    mAuthKey = KEY_NONE;
+
+                    // Whether mRead holds the current data of the sector
+                    boolean readValid = false;
+
+                    for (int i = 0; i < mStepCount; ++i) {
+                        switch (mSteps[i]) {
+                        case TEST_KEYS:
+                            if (!testSector(s)) {
+                                mKeysValid = false;
+                                return this;
+                            }
+                            break;
+                        case READ:
+                            readSector(mRead, s, readPlan);
+                            readValid = true;
+                            break;
+                        case VERIFY:
+                            if (!verifySector(s, readPlan, readValid ? mRead : null))
+                                return this;
+                            break;
+                        case WRITE:
+                            AccessConditions ac = layoutConditions(mLayout, s);
+                            mSkipped += writeSector(mData, s, writePlan, ac, mDifferential, readValid ? mRead : null);
+                            readValid = false;
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                mTag.close();
+            }
+
+            return this;
+        }
+
+        private boolean hasStep(int step) {
+            for (int i = 0; i < mStepCount; ++i) {
+                if (mSteps[i] == step)
+                    return true;
+            }
             return false;
+        }
 
-        mTag.connect();
+        // Authenticate with A key, then B key. The sector stays authenticated
+        // with B key for the following operations.
+        private boolean testSector(int s) throws IOException {
+            checkCancelled();
+            mAuthKey = KEY_NONE;
+            if (!mTag.authenticateSectorWithKeyA(s, mKeys.getKeyA(s, mKeyA)))
+                return false;
+            if (!mTag.authenticateSectorWithKeyB(s, mKeys.getKeyB(s, mKeyB)))
+                return false;
+            mAuthKey = KEY_B;
+            return true;
+        }
 
-        try {
-            for (int i = 0; i < mTag.getSectorCount(); ++i) {
-                if (!mTag.authenticateSectorWithKeyA(i, mKeys.getKeyA(i))
-                        || !mTag.authenticateSectorWithKeyB(i, mKeys.getKeyB(i))) {
-                    return false;
+        // Compare the blocks of a sector with the expected dump, using the
+        // card data in current if known. Blocks no key can read are skipped.
+        // Returns false to stop at a mismatch.
+        private boolean verifySector(int s, byte[] plan, Tag current) throws IOException {
+            int blockOffset = mTag.sectorToBlock(s);
+            int lastBlock = blockOffset + mTag.getBlockCountInSector(s);
+            for (int b = blockOffset; b < lastBlock; ++b) {
+                checkCancelled();
+
+                if (plan[b] == KEY_NONE)
+                    continue;
+
+                byte[] data = mExpected.getBlock(b, mBlock);
+                boolean trailer = b == lastBlock - 1;
+                boolean matches;
+                if (current != null) {
+                    matches = sameBlock(s, trailer, current.getBlock(b, mCurrent), data);
+                } else {
+                    mAuthKey = authenticate(s, plan[b], mAuthKey, false);
+                    matches = blockMatches(s, b, trailer, data);
+                }
+
+                if (!matches) {
+                    mMismatches.add(b);
+                    if (mStopAtMismatch)
+                        return false;
                 }
             }
-        } finally {
-            mTag.close();
+            return true;
         }
 
-        return true;
-    }
+        /**
+         * @return The tag read by read(), or null if the session didn't read
+         */
+        public Tag getTag() {
+            return mRead;
+        }
 
+        /**
+         * @return false if testKeys() found a key that fails to authenticate
+         */
+        public boolean keysValid() {
+            return mKeysValid;
+        }
+
+        /**
+         * @return The blocks that didn't match in verify(), in ascending order.
+         *         Only the first one if verify() stopped at a mismatch.
+         */
+        public int[] getMismatches() {
+            int[] blocks = new int[mMismatches.size()];
+            for (int i = 0; i < blocks.length; ++i)
+                blocks[i] = mMismatches.get(i);
+            return blocks;
+        }
+
+        /**
+         * @return The number of blocks write() skipped since they already
+         *         matched
+         */
+        public int getSkipped() {
+            return mSkipped;
+        }
+    }
 }
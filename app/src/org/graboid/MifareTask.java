@@ -20,6 +20,9 @@
 package org.graboid;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.nfc.tech.MifareClassic;
 import android.os.AsyncTask;
@@ -27,9 +30,22 @@ import android.os.AsyncTask;
 public abstract class MifareTask<Result> extends AsyncTask<MifareClassic, Integer, Result> implements IMifareTask,
         MifareIO.IProgressListener {
 
+    // Tag operations run on their own thread instead of the shared AsyncTask
+    // queue, so they don't wait behind unrelated tasks and a new operation
+    // only waits for the previous one to give up the tag
+    private static final Executor NFC_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "GraboidNfc");
+        }
+    });
+
+    // The task started last, only accessed on the main thread
+    private static MifareTask<?> sActive;
+
     private DomainState mState;
     private TaskFragment mFragment;
     private Exception mError;
+    private final CancellationToken mCancellation = new CancellationToken();
 
     protected MifareTask(DomainState state, TaskFragment fragment) {
         mState = state;
@@ -48,12 +64,38 @@ public abstract class MifareTask<Result> extends AsyncTask<MifareClassic, Intege
         return mState;
     }
 
+    protected TaskFragment getFragment() {
+        return mFragment;
+    }
+
     public Exception Error() {
         return mError;
     }
 
+    /**
+     * Pass to MifareIO.setCancellationToken() so cancel() stops the tag
+     * operation.
+     */
+    protected CancellationToken getCancellationToken() {
+        return mCancellation;
+    }
+
+    /**
+     * Start the task on the NFC thread. The task started before is cancelled,
+     * so it gives up the tag within one block and this one runs next.
+     * 
+     * Must be called on the main thread.
+     */
+    public void start(MifareClassic tag) {
+        if (sActive != null)
+            sActive.cancel();
+        sActive = this;
+        executeOnExecutor(NFC_EXECUTOR, tag);
+    }
+
     @Override
     public void cancel() {
+        mCancellation.cancel();
         super.cancel(false);
     }
 
@@ -96,10 +138,18 @@ public abstract class MifareTask<Result> extends AsyncTask<MifareClassic, Intege
 
     @Override
     protected void onPostExecute(Result data) {
+        if (sActive == this)
+            sActive = null;
         postProcessResult(data);
         mFragment.taskFinished();
     }
 
+    @Override
+    protected void onCancelled(Result data) {
+        if (sActive == this)
+            sActive = null;
+    }
+
     /**
      * Must not modify the domain state in this method.
      */
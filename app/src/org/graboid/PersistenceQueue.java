@@ -0,0 +1,297 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * This class saves tags, key chains and key statistics on a background thread.
+ * 
+ * Requests are coalesced until the background thread gets to them: only the
+ * latest tag, key chain and statistics are written, and all the requests share
+ * the same completion future. A delete followed by a save is a single write.
+ * Dumps added to the library are not coalesced, each one is written.
+ * 
+ * Loading runs on the same thread (see submit()), so saves requested while
+ * loading are written once the load is done.
+ */
+public class PersistenceQueue {
+
+    // A single thread for all queues keeps the file operations in order
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "GraboidPersistence");
+        }
+    });
+
+    private Future<FileIO> mFileIO;
+    private IPersistenceListener mListener;
+    private Handler mHandler;
+
+    // Pending requests. The original objects are reported on failure, the
+    // copies are written.
+    private boolean mTagPending;
+    private Tag mTag;
+    private Tag mTagCopy;
+    private DumpIndex.Entry mTagEntry;
+    private boolean mKeysPending;
+    private KeyChain mKeys;
+    private KeyChain mKeysCopy;
+    private KeyDictionary mStats;
+    private KeyBindings mBindings;
+    private FutureTask<Boolean> mFlush;
+
+    /**
+     * @param fileIO
+     *            The file interface to save with, created with submit()
+     * @param listener
+     *            Notified on the main thread when a save fails, may be null
+     */
+    public PersistenceQueue(Future<FileIO> fileIO, IPersistenceListener listener) {
+        mFileIO = fileIO;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Run a task on the persistence thread, after the saves queued so far.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Add a tag to the dump library as the current tag, replacing any pending
+     * tag request. The tag is copied.
+     * 
+     * @return A future that yields true if all the coalesced requests were
+     *         written
+     */
+    public synchronized Future<Boolean> saveTag(Tag t) {
+        assert (t != null);
+        mTagPending = true;
+        mTag = t;
+        mTagCopy = new Tag(t);
+        mTagEntry = null;
+        return schedule();
+    }
+
+    /**
+     * Make a dump of the library the current tag, replacing any pending tag
+     * request. Nothing but the index is written.
+     * 
+     * @param t
+     *            The tag of the dump, reported if it fails
+     * @param e
+     *            The index entry of the dump
+     */
+    public synchronized Future<Boolean> selectTag(Tag t, DumpIndex.Entry e) {
+        assert (t != null && e != null);
+        mTagPending = true;
+        mTag = t;
+        mTagCopy = null;
+        mTagEntry = e;
+        return schedule();
+    }
+
+    /**
+     * Clear the current tag, replacing any pending tag request. Its dump stays
+     * in the library.
+     */
+    public synchronized Future<Boolean> deleteTag() {
+        mTagPending = true;
+        mTag = null;
+        mTagCopy = null;
+        mTagEntry = null;
+        return schedule();
+    }
+
+    /**
+     * Save a key chain, replacing any pending key chain request. The key chain
+     * is copied.
+     */
+    public synchronized Future<Boolean> saveKeyChain(KeyChain k) {
+        assert (k != null);
+        mKeysPending = true;
+        mKeys = k;
+        mKeysCopy = new KeyChain(k);
+        return schedule();
+    }
+
+    /**
+     * Delete the stored key chain, replacing any pending key chain request.
+     */
+    public synchronized Future<Boolean> deleteKeyChain() {
+        mKeysPending = true;
+        mKeys = null;
+        mKeysCopy = null;
+        return schedule();
+    }
+
+    /**
+     * Save the learned statistics of a key dictionary.
+     */
+    public synchronized Future<Boolean> saveKeyStatistics(KeyDictionary d) {
+        assert (d != null);
+        mStats = d;
+        return schedule();
+    }
+
+    /**
+     * Save the key bindings, replacing any pending request. The bindings are
+     * copied.
+     */
+    public synchronized Future<Boolean> saveKeyBindings(KeyBindings b) {
+        assert (b != null);
+        mBindings = new KeyBindings(b);
+        return schedule();
+    }
+
+    private Future<Boolean> schedule() {
+        if (mFlush == null) {
+            mFlush = new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                    return flush();
+                }
+            });
+            EXECUTOR.execute(mFlush);
+        }
+        return mFlush;
+    }
+
+    // Write everything requested so far. Runs on the background thread.
+    private boolean flush() {
+        boolean tagPending, keysPending;
+        Tag tag, tagCopy;
+        DumpIndex.Entry tagEntry;
+        KeyChain keys, keysCopy;
+        KeyDictionary stats;
+        KeyBindings bindings;
+
+        // Take the pending requests, later requests start a new flush
+        synchronized (this) {
+            tagPending = mTagPending;
+            tag = mTag;
+            tagCopy = mTagCopy;
+            tagEntry = mTagEntry;
+            keysPending = mKeysPending;
+            keys = mKeys;
+            keysCopy = mKeysCopy;
+            stats = mStats;
+            bindings = mBindings;
+
+            mTagPending = mKeysPending = false;
+            mTag = mTagCopy = null;
+            mTagEntry = null;
+            mKeys = mKeysCopy = null;
+            mStats = null;
+            mBindings = null;
+            mFlush = null;
+        }
+
+        boolean ok = true;
+
+        if (keysPending) {
+            try {
+                if (keysCopy == null)
+                    mFileIO.get().deleteKeyChain();
+                else
+                    mFileIO.get().saveKeyChain(keysCopy);
+            } catch (Exception e) {
+                ok = false;
+                keyChainFailed(keys);
+            }
+        }
+
+        if (tagPending) {
+            try {
+                if (tagEntry != null)
+                    mFileIO.get().selectTag(tagEntry);
+                else if (tagCopy == null)
+                    mFileIO.get().deleteTag();
+                else
+                    mFileIO.get().saveTag(tagCopy);
+            } catch (Exception e) {
+                ok = false;
+                tagFailed(tag);
+            }
+        }
+
+        if (stats != null) {
+            try {
+                mFileIO.get().saveKeyStatistics(stats);
+            } catch (Exception e) {
+                // The statistics only speed up recovery, nothing to undo
+                ok = false;
+            }
+        }
+
+        if (bindings != null) {
+            try {
+                mFileIO.get().saveKeyBindings(bindings);
+            } catch (Exception e) {
+                // Still bound for the session
+                ok = false;
+            }
+        }
+
+        return ok;
+    }
+
+    private void tagFailed(final Tag t) {
+        if (mListener == null || t == null)
+            return;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mListener.tagSaveFailed(t);
+            }
+        });
+    }
+
+    private void keyChainFailed(final KeyChain k) {
+        if (mListener == null || k == null)
+            return;
+        mHandler.post(new Runnable() {
+            public void run() {
+                mListener.keyChainSaveFailed(k);
+            }
+        });
+    }
+
+    public static interface IPersistenceListener {
+        void tagSaveFailed(Tag t);
+
+        void keyChainSaveFailed(KeyChain k);
+    }
+}
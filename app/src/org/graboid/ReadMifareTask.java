@@ -21,25 +21,62 @@ package org.graboid;
 
 import java.io.IOException;
 
+import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
 
 public class ReadMifareTask extends MifareTask<Tag> {
+    private SessionCheckpoint mCheckpoint;
+    private byte[] mUID;
+    private int mATQA;
+    private int mSAK;
+
     public ReadMifareTask(DomainState state, TaskFragment fragment) {
         super(state, fragment);
     }
 
     @Override
     protected Tag processMifareTag(MifareClassic mfTag) throws IOException {
-        MifareIO mio = new MifareIO(mfTag, getDomainState().getKeys(), this);
-        return mio.read();
+        mUID = mfTag.getTag().getId();
+        mATQA = KeyBindings.getATQA(mfTag.getTag());
+        mSAK = KeyBindings.getSAK(mfTag.getTag());
+
+        // One consistent view of the keys, tag and checkpoint
+        DomainState.Snapshot state = getDomainState().getSnapshot();
+
+        // Continue an interrupted read of the same tag
+        mCheckpoint = SessionCheckpoint.resume(state.getCheckpoint(), SessionCheckpoint.Operation.READ,
+                mfTag.getTag().getId(), mfTag.getSectorCount());
+
+        MifareIO mio = new MifareIO(mfTag, state.getKeys(), this);
+        mio.setCancellationToken(getCancellationToken());
+
+        // Plan the keys from the previous dump if this tag was read before
+        Tag previous = state.getTag();
+        if (previous != null && previous.matchesUID(mfTag.getTag().getId()))
+            mio.setLayout(previous);
+
+        return mio.read(mCheckpoint);
     }
 
     @Override
     protected void postProcessResult(Tag res) {
         DomainState ds = getDomainState();
-        if (ds != null) {
+        if (ds == null)
+            return;
+
+        if (Error() instanceof TagLostException && mCheckpoint != null && mCheckpoint.hasProgress()) {
+            // Tag lost half way, stay in recording to resume on the next tap
+            ds.setCheckpoint(mCheckpoint);
+            return;
+        }
+
+        ds.setCheckpoint(null);
+        if (res != null) {
             ds.setTag(res);
-            ds.deActivate();
+            ds.rememberKeys(mUID, mATQA, mSAK);
+        } else if (!(Error() instanceof TagLostException)) {
+            ds.keysFailed();
         }
+        ds.deActivate();
     }
 }
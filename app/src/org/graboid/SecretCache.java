@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches decrypted tags and key chains, so switching between them
+ * doesn't read and decrypt the files again.
+ * 
+ * The cache holds up to a budget of bytes of tag and key data and evicts the
+ * least recently used entries first. It keeps copies: objects are copied in
+ * and out, and the copies are wiped when evicted, removed or cleared.
+ */
+public class SecretCache {
+
+    /**
+     * The default budget, in bytes
+     */
+    public static final int DEFAULT_BUDGET = 64 * 1024;
+
+    // Access ordered, least recently used first
+    private LinkedHashMap<String, Object> mEntries = new LinkedHashMap<String, Object>(16, 0.75f, true);
+    private int mBudget;
+    private int mSize;
+
+    public SecretCache(int budget) {
+        assert (budget >= 0);
+        mBudget = budget;
+    }
+
+    /**
+     * Change the budget, evicting entries if needed.
+     * 
+     * @param budget
+     *            The number of bytes of tag and key data to keep
+     */
+    public synchronized void setBudget(int budget) {
+        assert (budget >= 0);
+        mBudget = budget;
+        evict();
+    }
+
+    /**
+     * @return A copy of the cached tag, or null
+     */
+    public synchronized Tag getTag(String key) {
+        Object o = mEntries.get(key);
+        return o instanceof Tag ? new Tag((Tag) o) : null;
+    }
+
+    /**
+     * @return A copy of the cached key chain, or null
+     */
+    public synchronized KeyChain getKeyChain(String key) {
+        Object o = mEntries.get(key);
+        return o instanceof KeyChain ? new KeyChain((KeyChain) o) : null;
+    }
+
+    /**
+     * Cache a copy of a tag, replacing any entry of the key.
+     */
+    public synchronized void put(String key, Tag t) {
+        put(key, new Tag(t), sizeOf(t));
+    }
+
+    /**
+     * Cache a copy of a key chain, replacing any entry of the key.
+     */
+    public synchronized void put(String key, KeyChain k) {
+        put(key, new KeyChain(k), sizeOf(k));
+    }
+
+    /**
+     * Remove and wipe the entry of a key, e.g. when the stored object is
+     * deleted.
+     */
+    public synchronized void remove(String key) {
+        Object o = mEntries.remove(key);
+        if (o != null) {
+            mSize -= sizeOf(o);
+            wipe(o);
+        }
+    }
+
+    /**
+     * Remove and wipe all entries.
+     */
+    public synchronized void clear() {
+        for (Object o : mEntries.values())
+            wipe(o);
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    private void put(String key, Object copy, int size) {
+        remove(key);
+
+        // Too large to ever fit
+        if (size > mBudget) {
+            wipe(copy);
+            return;
+        }
+
+        mEntries.put(key, copy);
+        mSize += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Object>> it = mEntries.entrySet().iterator();
+        while (mSize > mBudget && it.hasNext()) {
+            Object o = it.next().getValue();
+            it.remove();
+            mSize -= sizeOf(o);
+            wipe(o);
+        }
+    }
+
+    private static int sizeOf(Object o) {
+        if (o instanceof Tag)
+            return ((Tag) o).getBlockCount() * Tag.BLOCK_SIZE;
+        return ((KeyChain) o).getSectorCount() * 2 * KeyChain.KEY_SIZE;
+    }
+
+    private static void wipe(Object o) {
+        if (o instanceof Tag)
+            ((Tag) o).wipe();
+        else
+            ((KeyChain) o).wipe();
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.util.Arrays;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * This class keeps track of how far a read or write of a tag got.
+ * 
+ * If the tag leaves the field half way through an operation, the checkpoint
+ * records which sectors were completed (and for reads, the data read so far)
+ * so that the operation can resume where it stopped when the same tag is
+ * tapped again.
+ */
+public class SessionCheckpoint implements Parcelable {
+
+    public enum Operation {
+        READ, WRITE
+    }
+
+    private Operation mOperation;
+    private byte[] mUID;
+    private boolean[] mDone;
+    private Tag mTag;
+
+    /**
+     * Create an empty checkpoint for an operation on a tag.
+     * 
+     * @param operation
+     *            The operation in progress
+     * @param uid
+     *            The UID of the tag
+     * @param type
+     *            The tag type
+     */
+    public SessionCheckpoint(Operation operation, byte[] uid, TagType type) {
+        assert (uid != null && type != null);
+
+        mOperation = operation;
+        mUID = uid.clone();
+        mDone = new boolean[type.getSectorCount()];
+        if (operation == Operation.READ)
+            mTag = new Tag(type);
+    }
+
+    /**
+     * Create a deep copy of a checkpoint.
+     */
+    public SessionCheckpoint(SessionCheckpoint other) {
+        mOperation = other.mOperation;
+        mUID = other.mUID.clone();
+        mDone = other.mDone.clone();
+        if (other.mTag != null)
+            mTag = new Tag(other.mTag);
+    }
+
+    /**
+     * Return a checkpoint to run an operation with. The previous checkpoint is
+     * continued (as a copy) if it was left by the same operation on the same
+     * tag, otherwise the operation starts from the beginning.
+     * 
+     * @param previous
+     *            The pending checkpoint, or null
+     * @param operation
+     *            The operation to run
+     * @param uid
+     *            The UID of the tapped tag
+     * @param sectors
+     *            The number of sectors of the tapped tag
+     * @return A checkpoint to pass to MifareIO
+     */
+    public static SessionCheckpoint resume(SessionCheckpoint previous, Operation operation, byte[] uid, int sectors) {
+        if (previous != null && previous.mOperation == operation && previous.mDone.length == sectors
+                && Arrays.equals(previous.mUID, uid))
+            return new SessionCheckpoint(previous);
+
+        return new SessionCheckpoint(operation, uid, TagType.getType(sectors));
+    }
+
+    public Operation getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * @return The data read so far, null for write checkpoints
+     */
+    public Tag getTag() {
+        return mTag;
+    }
+
+    public boolean isSectorDone(int sector) {
+        assert (sector >= 0 && sector < mDone.length);
+        return mDone[sector];
+    }
+
+    public void setSectorDone(int sector) {
+        assert (sector >= 0 && sector < mDone.length);
+        mDone[sector] = true;
+    }
+
+    /**
+     * @return true if at least one sector is completed
+     */
+    public boolean hasProgress() {
+        for (boolean done : mDone) {
+            if (done)
+                return true;
+        }
+        return false;
+    }
+
+    // -- Parcelable impl --------------------------------------------
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mOperation.ordinal());
+        dest.writeByteArray(mUID);
+        dest.writeInt(mDone.length);
+        for (boolean done : mDone)
+            dest.writeInt(done ? 1 : 0);
+        dest.writeParcelable(mTag, flags);
+    }
+
+    public static final Parcelable.Creator<SessionCheckpoint> CREATOR = new Parcelable.Creator<SessionCheckpoint>() {
+        public SessionCheckpoint createFromParcel(Parcel in) {
+            Operation operation = Operation.values()[in.readInt()];
+            byte[] uid = in.createByteArray();
+            int sectors = in.readInt();
+
+            SessionCheckpoint cp = new SessionCheckpoint(operation, uid, TagType.getType(sectors));
+            for (int i = 0; i < sectors; ++i)
+                cp.mDone[i] = in.readInt() != 0;
+            cp.mTag = in.readParcelable(Tag.class.getClassLoader());
+
+            return cp;
+        }
+
+        public SessionCheckpoint[] newArray(int size) {
+            return new SessionCheckpoint[size];
+        }
+    };
+}
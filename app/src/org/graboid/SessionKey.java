@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * This class holds the file encryption key for the session.
+ * 
+ * The key is derived from the password once per unlock and shared by every
+ * FileIO until the session is locked, so restoring the state after a
+ * configuration change doesn't run the key derivation again.
+ */
+public final class SessionKey {
+
+    private static char[] sPassword;
+    private static KeyDerivation sDerivation;
+    private static SecretKey sKey;
+
+    private SessionKey() {
+    }
+
+    /**
+     * Get the key for a password and derivation parameters, deriving it unless
+     * it is the key of the current session.
+     * 
+     * @param password
+     *            The password
+     * @param kdf
+     *            The key derivation parameters
+     * @return The AES key
+     * @throws Exception
+     */
+    public static synchronized SecretKey unlock(char[] password, KeyDerivation kdf) throws Exception {
+        if (sKey != null && Arrays.equals(sPassword, password) && kdf.equals(sDerivation))
+            return sKey;
+
+        SecretKey key = CryptoIO.deriveKey(password, kdf);
+
+        lock();
+        sPassword = password.clone();
+        sDerivation = kdf;
+        sKey = key;
+
+        return key;
+    }
+
+    /**
+     * @return true if a key is held
+     */
+    public static synchronized boolean isUnlocked() {
+        return sKey != null;
+    }
+
+    /**
+     * Forget the key. The next unlock derives it again.
+     */
+    public static synchronized void lock() {
+        if (sPassword != null)
+            Arrays.fill(sPassword, '\0');
+        sPassword = null;
+        sDerivation = null;
+        sKey = null;
+    }
+}
@@ -19,9 +19,16 @@
 
 package org.graboid;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -29,7 +36,14 @@ import android.os.Parcelable;
 /**
  * This class represents a Mifare classic tag.
  * 
- * It provides data access and serialization.
+ * It provides data access and serialization. The data of all blocks is kept in
+ * a single contiguous buffer; blocks and sectors can be accessed through views
+ * of that buffer without copying.
+ * 
+ * A serialized tag starts with MAGIC, the format version, the type and the
+ * UID, followed by a bitmap of the blocks that aren't all zeros, the data of
+ * those blocks only, and a CRC32 of all the preceding bytes. The original
+ * format, the type followed by the data padded to 4096 bytes, is still read.
  */
 public class Tag implements Parcelable {
 
@@ -48,15 +62,32 @@ public class Tag implements Parcelable {
      */
     public final static int UID_SIZE = 4;
 
+    private final static byte[] MAGIC = { 'G', 'T' };
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = MAGIC.length + 1 + 1 + UID_SIZE;
+    private final static int CHECKSUM_SIZE = 4;
+
+    // Size of the data in the original format, padded for all tag types
+    private final static int LEGACY_DATA_SIZE = 4096;
+
     private TagType mType;
-    private byte[][] mData;
+    // Block data, BLOCK_SIZE bytes per block
+    private byte[] mData;
 
     /**
      * Create a new tag of the specified type.
      */
     public Tag(TagType type) {
         mType = type;
-        mData = new byte[type.getBlockCount()][BLOCK_SIZE];
+        mData = new byte[type.getBlockCount() * BLOCK_SIZE];
+    }
+
+    /**
+     * Create a deep copy of a tag.
+     */
+    public Tag(Tag other) {
+        mType = other.mType;
+        mData = other.mData.clone();
     }
 
     /**
@@ -74,19 +105,36 @@ public class Tag implements Parcelable {
     }
 
     /**
-     * Get the tag data of a specified block.
+     * Get a copy of the tag data of a specified block.
      * 
      * @param block
      *            The block to access
      * @return block The block data, a byte array of BLOCK_SIZE length.
      */
     public byte[] getBlock(int block) {
-        assert (block >= 0 && block < mData.length);
-        return mData[block];
+        return getBlock(block, new byte[BLOCK_SIZE]);
     }
 
     /**
-     * Set the tag data of a specified block.
+     * Copy the tag data of a specified block into a buffer, without
+     * allocating.
+     * 
+     * @param block
+     *            The block to access
+     * @param dest
+     *            The buffer to receive the data, a byte array of BLOCK_SIZE
+     *            length
+     * @return dest
+     */
+    public byte[] getBlock(int block, byte[] dest) {
+        assert (block >= 0 && block < getBlockCount());
+        assert (dest != null && dest.length == BLOCK_SIZE);
+        System.arraycopy(mData, block * BLOCK_SIZE, dest, 0, BLOCK_SIZE);
+        return dest;
+    }
+
+    /**
+     * Set the tag data of a specified block. The data is copied.
      * 
      * @param block
      *            The block to modify
@@ -94,9 +142,36 @@ public class Tag implements Parcelable {
      *            The new block data, a byte array of BLOCK_SIZE length
      */
     public void setBlock(int block, byte[] data) {
-        assert (block >= 0 && block < mData.length);
+        assert (block >= 0 && block < getBlockCount());
         assert (data != null && data.length == BLOCK_SIZE);
-        mData[block] = data;
+        System.arraycopy(data, 0, mData, block * BLOCK_SIZE, BLOCK_SIZE);
+    }
+
+    /**
+     * Get a view of a block. Changes to the view change the tag.
+     * 
+     * @param block
+     *            The block to access
+     * @return A buffer of BLOCK_SIZE bytes backed by the tag data
+     */
+    public ByteBuffer getBlockView(int block) {
+        assert (block >= 0 && block < getBlockCount());
+        return ByteBuffer.wrap(mData, block * BLOCK_SIZE, BLOCK_SIZE).slice();
+    }
+
+    /**
+     * Get a view of all the blocks of a sector, trailer included. Changes to
+     * the view change the tag.
+     * 
+     * @param sector
+     *            The sector to access
+     * @return A buffer backed by the tag data
+     */
+    public ByteBuffer getSectorView(int sector) {
+        assert (sector >= 0 && sector < getSectorCount());
+        int offset = mType.sectorToBlock(sector) * BLOCK_SIZE;
+        int length = mType.getBlockCountInSector(sector) * BLOCK_SIZE;
+        return ByteBuffer.wrap(mData, offset, length).slice();
     }
 
     /**
@@ -106,11 +181,27 @@ public class Tag implements Parcelable {
      */
     public byte[] getUID() {
         byte[] uid = new byte[UID_SIZE];
-        for (int i = 0; i < UID_SIZE; ++i)
-            uid[i] = mData[0][i];
+        System.arraycopy(mData, 0, uid, 0, UID_SIZE);
         return uid;
     }
 
+    /**
+     * Check if a UID reported by a Mifare tag matches the UID of this tag.
+     * 
+     * @param uid
+     *            The UID of a Mifare tag (at least UID_SIZE bytes)
+     * @return true if the first UID_SIZE bytes match
+     */
+    public boolean matchesUID(byte[] uid) {
+        if (uid == null || uid.length < UID_SIZE)
+            return false;
+        for (int i = 0; i < UID_SIZE; ++i) {
+            if (uid[i] != mData[i])
+                return false;
+        }
+        return true;
+    }
+
     /**
      * @return A string representation of the tag UID.
      */
@@ -147,49 +238,143 @@ public class Tag implements Parcelable {
         // C1 C2 C3 : 1 0 0 -> B key to write keys, no way to change ACL
         // alt. C1 C2 C3 : 1 1 1 -> no way to write keys, no way to change ACL
 
+        int offset = block * BLOCK_SIZE;
+
         // 1 - - - 0 - - -
-        mData[block][6] = (byte) (((int) mData[block][6] | 0x80) & 0xF7);
+        mData[offset + 6] = (byte) (((int) mData[offset + 6] | 0x80) & 0xF7);
 
         // 1 - - - 1 - - -
-        mData[block][7] = (byte) ((int) mData[block][7] | 0x88);
+        mData[offset + 7] = (byte) ((int) mData[offset + 7] | 0x88);
 
         // 0 - - - 0 - - -
-        mData[block][8] = (byte) ((int) mData[block][8] & 0x77);
+        mData[offset + 8] = (byte) ((int) mData[offset + 8] & 0x77);
+    }
+
+    /**
+     * Overwrite all blocks with zeros, e.g. before dropping a copy that
+     * shouldn't linger in memory.
+     */
+    public void wipe() {
+        Arrays.fill(mData, (byte) 0);
+    }
+
+    /**
+     * @return The number of bytes of the serialized tag
+     */
+    public int getSerializedSize() {
+        int blocks = 0;
+        for (int b = 0; b < getBlockCount(); ++b) {
+            if (!isBlockEmpty(b))
+                ++blocks;
+        }
+        return HEADER_SIZE + getBitmapSize(mType) + blocks * BLOCK_SIZE + CHECKSUM_SIZE;
+    }
+
+    private boolean isBlockEmpty(int block) {
+        int end = (block + 1) * BLOCK_SIZE;
+        for (int i = block * BLOCK_SIZE; i < end; ++i) {
+            if (mData[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static int getBitmapSize(TagType type) {
+        return (type.getBlockCount() + 7) / 8;
     }
 
     /**
      * De-serialize the tag from an input stream and return a matching tag
-     * instance.
+     * instance. Only the bytes of the tag are read.
      * 
      * @param in
-     *            The stream containing the tag data.
+     *            The stream containing the tag data, in either format.
      * @return The new de-serialized tag instance
      * @throws IOException
      */
     public static Tag Read(InputStream in) throws IOException {
-
-        // Read the tag type
-        TagType type = TagType.getType(in.read());
-        if (type == null)
-            throw new IOException("Invalid tag data; illegal type");
-
-        // Read the data, one block at the time
-        Tag t = new Tag(type);
-        for (int i = 0; i < type.getBlockCount(); ++i) {
-            int read = in.read(t.mData[i], 0, BLOCK_SIZE);
-            if (read != BLOCK_SIZE)
+        DataInputStream din = new DataInputStream(in);
+
+        // The original format starts with the type
+        int first = din.read();
+        if (first != MAGIC[0]) {
+            TagType type = first >= 0 ? TagType.getType(first) : null;
+            if (type == null)
+                throw new IOException("Invalid tag data; illegal type");
+
+            Tag t = new Tag(type);
+            try {
+                din.readFully(t.mData);
+                din.skipBytes(LEGACY_DATA_SIZE - t.mData.length);
+            } catch (EOFException e) {
                 throw new IOException("Invalid tag data; underflow");
+            }
+            return t;
+        }
+
+        // Everything but the checksum itself is checked
+        CRC32 crc = new CRC32();
+        crc.update(first);
+        DataInputStream checked = new DataInputStream(new CheckedInputStream(in, crc));
+
+        try {
+            if (checked.read() != MAGIC[1])
+                throw new IOException("Invalid tag data; illegal magic");
+            if (checked.read() != VERSION)
+                throw new IOException("Unsupported tag data version");
+
+            int sectors = checked.read();
+            TagType type = sectors >= 0 ? TagType.getType(sectors) : null;
+            if (type == null)
+                throw new IOException("Invalid tag data; illegal type");
+
+            byte[] uid = new byte[UID_SIZE];
+            checked.readFully(uid);
+            byte[] bitmap = new byte[getBitmapSize(type)];
+            checked.readFully(bitmap);
+
+            // Read the stored blocks straight into the tag buffer
+            Tag t = new Tag(type);
+            for (int b = 0; b < type.getBlockCount(); ++b) {
+                if ((bitmap[b / 8] & (1 << (b % 8))) != 0)
+                    checked.readFully(t.mData, b * BLOCK_SIZE, BLOCK_SIZE);
+            }
+
+            if (din.readInt() != (int) crc.getValue())
+                throw new IOException("Invalid tag data; checksum mismatch");
+            if (!t.matchesUID(uid))
+                throw new IOException("Invalid tag data; UID mismatch");
+
+            return t;
+        } catch (EOFException e) {
+            throw new IOException("Invalid tag data; underflow");
         }
+    }
 
+    /**
+     * De-serialize the tag from a buffer and return a matching tag instance.
+     * The buffer position is moved past the tag.
+     * 
+     * @param in
+     *            The buffer containing the tag data in either format, from its
+     *            position.
+     * @return The new de-serialized tag instance
+     * @throws IOException
+     */
+    public static Tag Read(ByteBuffer in) throws IOException {
+        assert (in.hasArray());
+        ByteArrayInputStream bin = new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(),
+                in.remaining());
+        int available = bin.available();
+
+        Tag t = Read(bin);
+        in.position(in.position() + available - bin.available());
         return t;
     }
 
     /**
      * Serialize the tag and write it to an output stream.
      * 
-     * The data will be padded up to the size of the largest tag type to ensure
-     * that all tag types generate the same amount of data.
-     * 
      * @param t
      *            The tag to serialize
      * @param out
@@ -197,21 +382,51 @@ public class Tag implements Parcelable {
      * @throws IOException
      */
     public static void Write(Tag t, OutputStream out) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(t.getSerializedSize());
+        Write(t, data);
+        out.write(data.array());
 
-        // Save the tag type
-        out.write((byte) t.mType.getSectorCount());
+        out.close();
+    }
 
-        // Write the data
-        byte[][] data = t.mData; // Local variable optimization
-        for (byte[] block : data)
-            out.write(block);
+    /**
+     * Serialize the tag into a buffer.
+     * 
+     * @param t
+     *            The tag to serialize
+     * @param out
+     *            The buffer to receive the data, with at least
+     *            getSerializedSize() bytes remaining
+     */
+    public static void Write(Tag t, ByteBuffer out) {
+        assert (out.remaining() >= t.getSerializedSize());
+
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION;
+        header[MAGIC.length + 1] = (byte) t.mType.getSectorCount();
+        System.arraycopy(t.mData, 0, header, MAGIC.length + 2, UID_SIZE);
+
+        byte[] bitmap = new byte[getBitmapSize(t.mType)];
+        for (int b = 0; b < t.getBlockCount(); ++b) {
+            if (!t.isBlockEmpty(b))
+                bitmap[b / 8] |= 1 << (b % 8);
+        }
 
-        // Pad up to 4k size
-        int maxSize = 4096;
-        assert (maxSize - data.length * BLOCK_SIZE >= 0);
-        out.write(new byte[maxSize - data.length * BLOCK_SIZE]);
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        crc.update(bitmap);
+        out.put(header);
+        out.put(bitmap);
+
+        for (int b = 0; b < t.getBlockCount(); ++b) {
+            if ((bitmap[b / 8] & (1 << (b % 8))) != 0) {
+                crc.update(t.mData, b * BLOCK_SIZE, BLOCK_SIZE);
+                out.put(t.mData, b * BLOCK_SIZE, BLOCK_SIZE);
+            }
+        }
 
-        out.close();
+        out.putInt((int) crc.getValue());
     }
 
     // -- Parcelable impl --------------------------------------------
@@ -224,8 +439,7 @@ public class Tag implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mType.getSectorCount());
-        for (byte[] block : mData)
-            dest.writeByteArray(block);
+        dest.writeByteArray(mData);
     }
 
     public static final Parcelable.Creator<Tag> CREATOR = new Parcelable.Creator<Tag>() {
@@ -233,8 +447,8 @@ public class Tag implements Parcelable {
             TagType t = TagType.getType(in.readInt());
 
             Tag tag = new Tag(t);
-            for (int i = 0; i < tag.getBlockCount(); ++i)
-                tag.setBlock(i, in.createByteArray());
+            tag.mData = in.createByteArray();
+            assert (tag.mData.length == t.getBlockCount() * BLOCK_SIZE);
 
             return tag;
         }
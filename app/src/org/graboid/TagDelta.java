@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class holds the blocks that differ between two tags of the same type:
+ * the block numbers and the new block data.
+ */
+public class TagDelta {
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 2;
+    private static final int ENTRY_SIZE = 2 + Tag.BLOCK_SIZE;
+
+    private TagType mType;
+    private int[] mBlocks;
+    // Block data, BLOCK_SIZE bytes per changed block
+    private byte[] mData;
+
+    private TagDelta(TagType type, int[] blocks, byte[] data) {
+        mType = type;
+        mBlocks = blocks;
+        mData = data;
+    }
+
+    /**
+     * Compare two tags of the same type block by block.
+     * 
+     * @param from
+     *            The older tag
+     * @param to
+     *            The newer tag
+     * @return The blocks of to that differ from from
+     */
+    public static TagDelta diff(Tag from, Tag to) {
+        assert (from.getSectorCount() == to.getSectorCount());
+
+        int[] blocks = new int[to.getBlockCount()];
+        int count = 0;
+        for (int b = 0; b < to.getBlockCount(); ++b) {
+            if (!from.getBlockView(b).equals(to.getBlockView(b)))
+                blocks[count++] = b;
+        }
+
+        byte[] data = new byte[count * Tag.BLOCK_SIZE];
+        ByteBuffer out = ByteBuffer.wrap(data);
+        for (int i = 0; i < count; ++i)
+            out.put(to.getBlockView(blocks[i]));
+
+        int[] changed = new int[count];
+        System.arraycopy(blocks, 0, changed, 0, count);
+        return new TagDelta(TagType.getType(to.getSectorCount()), changed, data);
+    }
+
+    /**
+     * @return The numbers of the changed blocks, in ascending order
+     */
+    public int[] getBlocks() {
+        return mBlocks.clone();
+    }
+
+    public boolean isEmpty() {
+        return mBlocks.length == 0;
+    }
+
+    /**
+     * Write the changed blocks into a tag of the same type.
+     * 
+     * @param t
+     *            The tag to update
+     */
+    public void apply(Tag t) {
+        assert (t.getSectorCount() == mType.getSectorCount());
+        for (int i = 0; i < mBlocks.length; ++i)
+            t.getBlockView(mBlocks[i]).put(mData, i * Tag.BLOCK_SIZE, Tag.BLOCK_SIZE);
+    }
+
+    /**
+     * @return The number of bytes of the serialized delta
+     */
+    public int getSerializedSize() {
+        return HEADER_SIZE + mBlocks.length * ENTRY_SIZE;
+    }
+
+    /**
+     * De-serialize a delta from a buffer.
+     * 
+     * @param in
+     *            The buffer containing the delta, from its position.
+     * @return The new de-serialized delta
+     * @throws IOException
+     */
+    public static TagDelta Read(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_SIZE || in.getInt() != VERSION)
+            throw new IOException("Invalid tag delta; unsupported version");
+
+        TagType type = TagType.getType(in.get() & 0xFF);
+        if (type == null)
+            throw new IOException("Invalid tag delta; illegal type");
+
+        int count = in.getShort() & 0xFFFF;
+        if (count > type.getBlockCount() || in.remaining() < count * ENTRY_SIZE)
+            throw new IOException("Invalid tag delta; underflow");
+
+        int[] blocks = new int[count];
+        byte[] data = new byte[count * Tag.BLOCK_SIZE];
+        for (int i = 0; i < count; ++i) {
+            blocks[i] = in.getShort() & 0xFFFF;
+            if (blocks[i] >= type.getBlockCount())
+                throw new IOException("Invalid tag delta; illegal block");
+            in.get(data, i * Tag.BLOCK_SIZE, Tag.BLOCK_SIZE);
+        }
+
+        return new TagDelta(type, blocks, data);
+    }
+
+    /**
+     * Serialize a delta into a buffer.
+     * 
+     * @param delta
+     *            The delta to serialize
+     * @param out
+     *            The buffer to receive the data, with at least
+     *            getSerializedSize() bytes remaining
+     */
+    public static void Write(TagDelta delta, ByteBuffer out) {
+        assert (out.remaining() >= delta.getSerializedSize());
+
+        out.putInt(VERSION);
+        out.put((byte) delta.mType.getSectorCount());
+        out.putShort((short) delta.mBlocks.length);
+        for (int i = 0; i < delta.mBlocks.length; ++i) {
+            out.putShort((short) delta.mBlocks[i]);
+            out.put(delta.mData, i * Tag.BLOCK_SIZE, Tag.BLOCK_SIZE);
+        }
+    }
+}
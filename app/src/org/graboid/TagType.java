@@ -76,6 +76,47 @@ public class TagType {
         return mSectorCount;
     }
 
+    /**
+     * Get the number of blocks in a sector. The first 32 sectors have 4
+     * blocks, the extended sectors of a 4k tag have 16 blocks.
+     * 
+     * @param sector
+     *            The sector to query
+     * @return The number of blocks in the sector
+     */
+    public int getBlockCountInSector(int sector) {
+        assert (sector >= 0 && sector < mSectorCount);
+        return sector < 32 ? BLOCKS_IN_SECTOR : BLOCKS_IN_EXTENDED_SECTOR;
+    }
+
+    /**
+     * Get the first block of a sector.
+     * 
+     * @param sector
+     *            The sector to query
+     * @return The index of the first block in the sector
+     */
+    public int sectorToBlock(int sector) {
+        assert (sector >= 0 && sector < mSectorCount);
+        if (sector < 32)
+            return sector * BLOCKS_IN_SECTOR;
+        return 32 * BLOCKS_IN_SECTOR + (sector - 32) * BLOCKS_IN_EXTENDED_SECTOR;
+    }
+
+    /**
+     * Get the sector that holds a block.
+     * 
+     * @param block
+     *            The block to query
+     * @return The sector containing the block
+     */
+    public int blockToSector(int block) {
+        assert (block >= 0 && block < mBlockCount);
+        if (block < 32 * BLOCKS_IN_SECTOR)
+            return block / BLOCKS_IN_SECTOR;
+        return 32 + (block - 32 * BLOCKS_IN_SECTOR) / BLOCKS_IN_EXTENDED_SECTOR;
+    }
+
     /**
      * Private singleton constructor
      */
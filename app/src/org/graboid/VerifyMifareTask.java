@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+
+import android.app.Activity;
+import android.nfc.TagLostException;
+import android.nfc.tech.MifareClassic;
+import android.widget.Toast;
+
+public class VerifyMifareTask extends MifareTask<int[]> {
+    private byte[] mUID;
+    private int mATQA;
+    private int mSAK;
+
+    public VerifyMifareTask(DomainState state, TaskFragment fragment) {
+        super(state, fragment);
+    }
+
+    @Override
+    protected int[] processMifareTag(MifareClassic mfTag) throws IOException {
+        mUID = mfTag.getTag().getId();
+        mATQA = KeyBindings.getATQA(mfTag.getTag());
+        mSAK = KeyBindings.getSAK(mfTag.getTag());
+
+        DomainState.Snapshot state = getDomainState().getSnapshot();
+
+        MifareIO mio = new MifareIO(mfTag, state.getKeys(), this);
+        mio.setCancellationToken(getCancellationToken());
+        mio.setLayout(state.getTag());
+
+        // Only whether it matches is shown, no need to compare further
+        return mio.verify(state.getTag(), true);
+    }
+
+    @Override
+    protected void postProcessResult(int[] mismatches) {
+        DomainState ds = getDomainState();
+        if (ds != null && mismatches != null)
+            ds.rememberKeys(mUID, mATQA, mSAK);
+        else if (ds != null && !(Error() instanceof TagLostException))
+            ds.keysFailed();
+
+        Activity activity = getFragment().getActivity();
+        if (activity == null)
+            return;
+
+        int message;
+        if (mismatches == null)
+            message = R.string.verify_tag_failed;
+        else if (mismatches.length == 0)
+            message = R.string.tag_matches;
+        else
+            message = R.string.tag_differs;
+        Toast.makeText(activity, message, Toast.LENGTH_SHORT).show();
+    }
+}
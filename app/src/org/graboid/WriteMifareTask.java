@@ -21,24 +21,62 @@ package org.graboid;
 
 import java.io.IOException;
 
+import android.app.Activity;
+import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
+import android.widget.Toast;
 
 public class WriteMifareTask extends MifareTask<Void> {
+    private SessionCheckpoint mCheckpoint;
+    private byte[] mUID;
+    private int mATQA;
+    private int mSAK;
+    private int mSkipped;
+
     public WriteMifareTask(DomainState state, TaskFragment fragment) {
         super(state, fragment);
     }
 
     @Override
     protected Void processMifareTag(MifareClassic mfTag) throws IOException {
-        MifareIO mio = new MifareIO(mfTag, getDomainState().getKeys(), this);
-        mio.write(getDomainState().getTag());
+        mUID = mfTag.getTag().getId();
+        mATQA = KeyBindings.getATQA(mfTag.getTag());
+        mSAK = KeyBindings.getSAK(mfTag.getTag());
+
+        // One consistent view of the keys, tag and checkpoint
+        DomainState.Snapshot state = getDomainState().getSnapshot();
+
+        // Continue an interrupted write of the same tag
+        mCheckpoint = SessionCheckpoint.resume(state.getCheckpoint(), SessionCheckpoint.Operation.WRITE,
+                mfTag.getTag().getId(), mfTag.getSectorCount());
+
+        MifareIO mio = new MifareIO(mfTag, state.getKeys(), this);
+        mio.setCancellationToken(getCancellationToken());
+        mSkipped = mio.write(state.getTag(), true, mCheckpoint);
         return null; // Void return
     }
 
     @Override
     protected void postProcessResult(Void v) {
         DomainState ds = getDomainState();
-        if (ds != null)
-            ds.deActivate();
+        if (ds == null)
+            return;
+
+        if (Error() instanceof TagLostException && mCheckpoint != null && mCheckpoint.hasProgress()) {
+            // Tag lost half way, stay in replay to resume on the next tap
+            ds.setCheckpoint(mCheckpoint);
+            return;
+        }
+
+        ds.setCheckpoint(null);
+        if (Error() == null)
+            ds.rememberKeys(mUID, mATQA, mSAK);
+        else if (!(Error() instanceof TagLostException))
+            ds.keysFailed();
+        ds.deActivate();
+
+        Activity activity = getFragment().getActivity();
+        if (activity != null && Error() == null)
+            Toast.makeText(activity, activity.getString(R.string.tag_written, mSkipped), Toast.LENGTH_SHORT).show();
     }
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmark of loading a large key dictionary, parsed from text versus
+ * memory mapped from the compiled format.
+ * 
+ * Usage: KeyDictionaryBenchmark [keys] [iterations]
+ */
+public class KeyDictionaryBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // A key list like the ones found on the internet
+        StringBuilder sb = new StringBuilder("# Benchmark keys\n");
+        Random random = new Random(42);
+        for (int i = 0; i < keys; ++i)
+            sb.append(String.format("%012x\n", random.nextLong() & 0xFFFFFFFFFFFFL));
+        byte[] text = sb.toString().getBytes("US-ASCII");
+
+        File compiled = File.createTempFile("bench", ".gkd");
+        compiled.deleteOnExit();
+
+        long start = System.nanoTime();
+        int unique = KeyDictionaryCompiler.compile(new ByteArrayInputStream(text), compiled);
+        report("compile", System.nanoTime() - start, 1, 0);
+
+        // Warm up both paths
+        for (int i = 0; i < iterations; ++i) {
+            KeyDictionary.Read(new ByteArrayInputStream(text));
+            KeyDictionary.map(compiled).contains(0);
+        }
+
+        long heap = usedHeap();
+        KeyDictionary[] retained = new KeyDictionary[iterations];
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            retained[i] = KeyDictionary.Read(new ByteArrayInputStream(text));
+        report("parse", System.nanoTime() - start, iterations, (usedHeap() - heap) / iterations);
+
+        retained = new KeyDictionary[iterations];
+        heap = usedHeap();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            retained[i] = KeyDictionary.map(compiled);
+        report("map", System.nanoTime() - start, iterations, (usedHeap() - heap) / iterations);
+
+        // Look up every key in the mapped dictionary
+        KeyDictionary d = retained[0];
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < d.size(); ++i)
+            found += d.contains(d.getKey(i)) ? 1 : 0;
+        report("contains", System.nanoTime() - start, d.size(), 0);
+
+        System.out.println(String.format("# %d keys, %d unique, %d found, %d bytes compiled", keys, unique, found,
+                compiled.length()));
+    }
+
+    private static void report(String name, long nanos, int iterations, long bytes) {
+        System.out.println(String.format("%-10s %12.3f us/op %12d heap bytes/op", name, nanos / 1e3 / iterations,
+                bytes));
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
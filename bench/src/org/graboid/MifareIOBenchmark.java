@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.nfc.TagLostException;
+
+/**
+ * Benchmark of the MifareIO operations against simulated cards of every tag
+ * type. Reports operations per second and the latency per sector, together
+ * with the card commands each operation issued.
+ * 
+ * Usage: MifareIOBenchmark [host|field] [iterations]
+ * 
+ * In host mode the card commands are free, measuring the overhead of the
+ * app side code. In field mode every command costs the typical latency of a
+ * phone talking to a card, measuring time in the field.
+ */
+public class MifareIOBenchmark {
+
+    private final static TagType[] TYPES = { TagType.MFC_MINI, TagType.MFC_1k, TagType.MFC_2k, TagType.MFC_4k };
+    private final static byte[] UID = { 0x12, 0x34, 0x56, 0x78 };
+
+    private interface Operation {
+        void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException;
+    }
+
+    private static class Benchmark {
+        String name;
+        Operation op;
+        int dataCondition;
+
+        Benchmark(String name, Operation op) {
+            this(name, op, SimulatedMifareCard.DATA_TRANSPORT);
+        }
+
+        Benchmark(String name, Operation op, int dataCondition) {
+            this.name = name;
+            this.op = op;
+            this.dataCondition = dataCondition;
+        }
+    }
+
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<Benchmark>();
+        list.add(new Benchmark("read", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                io.read();
+            }
+        }));
+        list.add(new Benchmark("readPlan", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Data blocks only readable with key B, keys planned from the
+                // previous dump
+                io.setLayout(dump);
+                io.read();
+            }
+        }, SimulatedMifareCard.DATA_KEY_B));
+        list.add(new Benchmark("write", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                io.write(dump);
+            }
+        }));
+        list.add(new Benchmark("writeDiff", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Replay a dump where two value blocks changed since the
+                // previous replay
+                increment(dump.getBlockView(1));
+                increment(dump.getBlockView(dump.getBlockCount() - 2));
+                io.write(dump, true);
+            }
+        }));
+        list.add(new Benchmark("writeRO", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Write a dump with read-only data blocks onto a blank card.
+                // The blank card's own access bits allow every write, so all
+                // blocks have to be written before the trailers lock them.
+                Tag target = readOnly(dump);
+                card.setImage(dump);
+                io.write(target, false);
+                if (!sameBlocks(card.getImage(), target))
+                    throw new IOException("Blocks not written");
+            }
+        }));
+        list.add(new Benchmark("batch", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // The same read-only dump as a batch replay, written onto a
+                // blank card like each new card of the batch
+                BatchReplay batch = new BatchReplay(readOnly(dump));
+                card.setImage(dump);
+                io.write(batch.getTag(), batch.isRetry(card.getUID()));
+                if (!sameBlocks(card.getImage(), batch.getTag()))
+                    throw new IOException("Blocks not written");
+            }
+        }));
+        list.add(new Benchmark("readResume", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // The tag leaves the field half way through the read, then
+                // the read is resumed on the next tap
+                SessionCheckpoint cp = new SessionCheckpoint(SessionCheckpoint.Operation.READ, card.getUID(),
+                        TagType.getType(card.getSectorCount()));
+                card.loseFieldAfter(dump.getBlockCount() / 2);
+                try {
+                    io.read(cp);
+                    throw new IOException("Tag not lost");
+                } catch (TagLostException e) {
+                    card.loseFieldAfter(-1);
+                }
+                io.read(cp);
+            }
+        }));
+        list.add(new Benchmark("recover", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // The card keys are the last candidates in the dictionary
+                io.recoverKeys(dictionary(), FAMILY);
+            }
+        }));
+        list.add(new Benchmark("recoverHot", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // The dictionary learned the keys from a previous card
+                KeyDictionary d = dictionary();
+                d.recordHits(FAMILY, new KeyChain(TagType.getType(card.getSectorCount())));
+                io.recoverKeys(d, FAMILY);
+            }
+        }));
+        list.add(new Benchmark("testKeys", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                if (!io.testKeys())
+                    throw new IOException("Key test failed");
+            }
+        }));
+        list.add(new Benchmark("verify", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Check a card that matches the dump
+                if (io.verify(dump, true).length != 0)
+                    throw new IOException("Verify failed");
+            }
+        }));
+        list.add(new Benchmark("verifyDiff", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Check a card that changed in its first data block
+                Tag changed = new Tag(dump);
+                increment(changed.getBlockView(1));
+                if (io.verify(changed, true).length != 1)
+                    throw new IOException("Mismatch not found");
+            }
+        }));
+        list.add(new Benchmark("separate", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // Test the keys, read and read back to verify, each in its own
+                // connection
+                if (!io.testKeys())
+                    throw new IOException("Key test failed");
+                io.read();
+                if (!sameBlocks(io.read(), dump))
+                    throw new IOException("Verify failed");
+            }
+        }));
+        list.add(new Benchmark("session", new Operation() {
+            public void run(MifareIO io, SimulatedMifareCard card, Tag dump) throws IOException {
+                // The same operations in one session
+                MifareIO.Session session = io.newSession().testKeys().read().verify(dump).run();
+                if (!session.keysValid() || session.getMismatches().length != 0)
+                    throw new IOException("Verify failed");
+            }
+        }));
+        return list;
+    }
+
+    private static boolean sameBlocks(Tag a, Tag b) {
+        for (int i = 0; i < a.getBlockCount(); ++i) {
+            if (!a.getBlockView(i).equals(b.getBlockView(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // A copy of a dump with new data in read-only (010) data blocks
+    private static Tag readOnly(Tag dump) {
+        Tag t = new Tag(dump);
+        TagType type = TagType.getType(t.getSectorCount());
+        byte[] acl = AccessConditions.encode(2, 2, 2, SimulatedMifareCard.TRAILER_KEY_B);
+        for (int s = 0; s < type.getSectorCount(); ++s) {
+            int trailer = type.sectorToBlock(s) + type.getBlockCountInSector(s) - 1;
+            for (int b = type.sectorToBlock(s); b < trailer; ++b) {
+                if (b != 0)
+                    increment(t.getBlockView(b));
+            }
+            ByteBuffer view = t.getBlockView(trailer);
+            for (int i = 0; i < acl.length; ++i)
+                view.put(Tag.KEY_SIZE + i, acl[i]);
+        }
+        return t;
+    }
+
+    // Change the first byte of a block in place
+    private static void increment(ByteBuffer block) {
+        block.put(0, (byte) (block.get(0) + 1));
+    }
+
+    private final static String FAMILY = "bench";
+    private final static int DICTIONARY_SIZE = 50;
+
+    // A dictionary with the (all zero) card key last
+    private static KeyDictionary dictionary() {
+        long[] keys = new long[DICTIONARY_SIZE];
+        for (int i = 0; i < keys.length - 1; ++i)
+            keys[i] = 0x1000 + i;
+        keys[keys.length - 1] = 0;
+        return new KeyDictionary(keys);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean field = args.length > 0 && args[0].equals("field");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : (field ? 5 : 2000);
+
+        System.out.println(String.format("# mode %s, %d iterations", field ? "field" : "host", iterations));
+        System.out.println(String.format("%-6s %-10s %12s %12s %8s %8s %8s %8s", "type", "operation", "ops/s",
+                "us/sector", "auth", "failed", "reads", "writes"));
+
+        for (TagType type : TYPES) {
+            for (Benchmark b : benchmarks())
+                run(type, b, field, iterations);
+        }
+    }
+
+    private static void run(TagType type, Benchmark b, boolean field, int iterations) throws IOException {
+        KeyChain keys = new KeyChain(type);
+        SimulatedMifareCard card = new SimulatedMifareCard(type, UID, keys, b.dataCondition,
+                SimulatedMifareCard.TRAILER_KEY_B);
+        if (!field)
+            card.setLatency(0, 0, 0, 0, 0);
+
+        // The dump to write back is the card's own content
+        Tag dump = card.getImage();
+
+        // Warm up the JIT before measuring
+        int warmup = field ? 1 : iterations / 2;
+        for (int i = 0; i < warmup; ++i)
+            b.op.run(new MifareIO(card, keys, null), card, dump);
+
+        card.resetCounters();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            b.op.run(new MifareIO(card, keys, null), card, dump);
+        long elapsed = System.nanoTime() - start;
+
+        double opsPerSecond = iterations * 1e9 / elapsed;
+        double microsPerSector = elapsed / 1e3 / iterations / type.getSectorCount();
+        System.out.println(String.format("%-6s %-10s %12.1f %12.2f %8d %8d %8d %8d", name(type), b.name,
+                opsPerSecond, microsPerSector, card.getAuthCount() / iterations, card.getFailedAuthCount()
+                        / iterations, card.getReadCount() / iterations, card.getWriteCount() / iterations));
+    }
+
+    private static String name(TagType type) {
+        if (type == TagType.MFC_MINI)
+            return "mini";
+        return (type.getSectorCount() == 16 ? 1 : type.getSectorCount() == 32 ? 2 : 4) + "k";
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2013 Paul Muad'Dib
+ * 
+ * This file is part of Graboid.
+ * 
+ * Graboid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Graboid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Graboid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.graboid;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import android.nfc.TagLostException;
+
+/**
+ * An in-memory Mifare Classic card for running MifareIO without a phone.
+ * 
+ * The card keeps the full memory image including both keys of every sector
+ * and enforces the access conditions stored in the sector trailers. Every
+ * command costs a configurable latency. A failed authentication or a denied
+ * block access halts the card like a real one; the next authentication then
+ * pays for a reselect.
+ */
+public class SimulatedMifareCard implements IMifareTransport {
+
+    // Typical command timings for a phone talking to a Mifare Classic card
+    public final static long DEFAULT_CONNECT_MICROS = 15000;
+    public final static long DEFAULT_AUTH_MICROS = 4000;
+    public final static long DEFAULT_READ_MICROS = 3000;
+    public final static long DEFAULT_WRITE_MICROS = 7000;
+    public final static long DEFAULT_RESELECT_MICROS = 12000;
+
+    // Access conditions C1C2C3 as a 3-bit number (C1 is the high bit)
+    public final static int DATA_TRANSPORT = 0; // 000: read/write AB
+    public final static int DATA_KEY_B = 3; // 011: read/write B only
+    public final static int TRAILER_KEY_B = 3; // 011: keys and ACL written with B, B not readable
+
+    private TagType mType;
+    private byte[][] mData;
+
+    private boolean mConnected = false;
+    private boolean mHalted = false;
+    private int mAuthSector = -1;
+    private boolean mAuthKeyB = false;
+
+    private long mConnectMicros = DEFAULT_CONNECT_MICROS;
+    private long mAuthMicros = DEFAULT_AUTH_MICROS;
+    private long mReadMicros = DEFAULT_READ_MICROS;
+    private long mWriteMicros = DEFAULT_WRITE_MICROS;
+    private long mReselectMicros = DEFAULT_RESELECT_MICROS;
+
+    private int mCommandsInField = -1;
+
+    private int mConnects;
+    private int mAuths;
+    private int mFailedAuths;
+    private int mReads;
+    private int mWrites;
+
+    /**
+     * Create a blank card where every sector is protected by the keys in a key
+     * chain, data blocks are read/write with either key and the trailer is
+     * managed with key B.
+     * 
+     * @param type
+     *            The card geometry
+     * @param uid
+     *            The card UID (Tag.UID_SIZE bytes)
+     * @param keys
+     *            The keys to put in the sector trailers
+     */
+    public SimulatedMifareCard(TagType type, byte[] uid, KeyChain keys) {
+        this(type, uid, keys, DATA_TRANSPORT, TRAILER_KEY_B);
+    }
+
+    /**
+     * Create a blank card where every sector is protected by the keys in a key
+     * chain and the given access conditions.
+     * 
+     * @param type
+     *            The card geometry
+     * @param uid
+     *            The card UID (Tag.UID_SIZE bytes)
+     * @param keys
+     *            The keys to put in the sector trailers
+     * @param dataCondition
+     *            The C1C2C3 access condition of all data blocks
+     * @param trailerCondition
+     *            The C1C2C3 access condition of the trailers
+     */
+    public SimulatedMifareCard(TagType type, byte[] uid, KeyChain keys, int dataCondition, int trailerCondition) {
+        assert (uid != null && uid.length == Tag.UID_SIZE);
+        assert (keys.getSectorCount() >= type.getSectorCount());
+
+        mType = type;
+        mData = new byte[type.getBlockCount()][Tag.BLOCK_SIZE];
+
+        System.arraycopy(uid, 0, mData[0], 0, Tag.UID_SIZE);
+        byte bcc = 0;
+        for (byte b : uid)
+            bcc ^= b;
+        mData[0][Tag.UID_SIZE] = bcc;
+
+        byte[] acl = AccessConditions.encode(dataCondition, dataCondition, dataCondition, trailerCondition);
+        for (int s = 0; s < type.getSectorCount(); ++s) {
+            byte[] trailer = mData[trailerBlock(s)];
+            System.arraycopy(keys.getKeyA(s), 0, trailer, 0, Tag.KEY_SIZE);
+            System.arraycopy(acl, 0, trailer, Tag.KEY_SIZE, acl.length);
+            System.arraycopy(keys.getKeyB(s), 0, trailer, Tag.BLOCK_SIZE - Tag.KEY_SIZE, Tag.KEY_SIZE);
+        }
+    }
+
+    /**
+     * Create a card from a full memory image, e.g. a dump read with MifareIO.
+     * The trailers of the image must contain the real keys.
+     * 
+     * @param image
+     *            The memory image of the card
+     */
+    public SimulatedMifareCard(Tag image) {
+        mType = TagType.getType(image.getSectorCount());
+        mData = new byte[mType.getBlockCount()][];
+        for (int b = 0; b < mData.length; ++b)
+            mData[b] = image.getBlock(b);
+    }
+
+    /**
+     * Set the latency of each command, in microseconds. Use zeros to measure
+     * the host side overhead only.
+     */
+    public void setLatency(long connect, long auth, long read, long write, long reselect) {
+        mConnectMicros = connect;
+        mAuthMicros = auth;
+        mReadMicros = read;
+        mWriteMicros = write;
+        mReselectMicros = reselect;
+    }
+
+    /**
+     * @return A copy of the card memory, keys included.
+     */
+    public Tag getImage() {
+        Tag t = new Tag(mType);
+        for (int b = 0; b < mData.length; ++b)
+            t.setBlock(b, mData[b]);
+        return t;
+    }
+
+    /**
+     * Replace the card memory with an image, e.g. to start each run from a
+     * blank card again. The trailers of the image must contain the real keys.
+     * 
+     * @param image
+     *            The memory image, of the card's type
+     */
+    public void setImage(Tag image) {
+        assert (image.getSectorCount() == mType.getSectorCount());
+        for (int b = 0; b < mData.length; ++b)
+            mData[b] = image.getBlock(b);
+    }
+
+    /**
+     * Make the card leave the field after a number of authenticate, read and
+     * write commands. The next command then fails with a TagLostException.
+     * 
+     * @param commands
+     *            The number of commands that succeed, or -1 to never leave
+     */
+    public void loseFieldAfter(int commands) {
+        mCommandsInField = commands;
+    }
+
+    public int getConnectCount() {
+        return mConnects;
+    }
+
+    public int getAuthCount() {
+        return mAuths;
+    }
+
+    public int getFailedAuthCount() {
+        return mFailedAuths;
+    }
+
+    public int getReadCount() {
+        return mReads;
+    }
+
+    public int getWriteCount() {
+        return mWrites;
+    }
+
+    public void resetCounters() {
+        mConnects = mAuths = mFailedAuths = mReads = mWrites = 0;
+    }
+
+    // -- IMifareTransport impl --------------------------------------
+
+    @Override
+    public void connect() throws IOException {
+        if (mConnected)
+            throw new IOException("Already connected");
+        delay(mConnectMicros);
+        ++mConnects;
+        mConnected = true;
+        mHalted = false;
+        mAuthSector = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mConnected = false;
+        mAuthSector = -1;
+    }
+
+    @Override
+    public byte[] getUID() {
+        byte[] uid = new byte[Tag.UID_SIZE];
+        System.arraycopy(mData[0], 0, uid, 0, Tag.UID_SIZE);
+        return uid;
+    }
+
+    @Override
+    public int getSectorCount() {
+        return mType.getSectorCount();
+    }
+
+    @Override
+    public int getBlockCountInSector(int sector) {
+        return mType.getBlockCountInSector(sector);
+    }
+
+    @Override
+    public int sectorToBlock(int sector) {
+        return mType.sectorToBlock(sector);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sector, byte[] key) throws IOException {
+        return authenticate(sector, key, false);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyB(int sector, byte[] key) throws IOException {
+        return authenticate(sector, key, true);
+    }
+
+    @Override
+    public byte[] readBlock(int block) throws IOException {
+        int sector = mType.blockToSector(block);
+        assertAuthenticated(sector);
+        delay(mReadMicros);
+        ++mReads;
+
+        AccessConditions ac = accessConditions(sector);
+        int group = group(sector, block);
+        byte[] data = mData[block].clone();
+
+        if (ac == null || !ac.canRead(group, mAuthKeyB))
+            throw deny("Read denied");
+        if (group != AccessConditions.TRAILER)
+            return data;
+
+        // Key A is never readable, key B only under some conditions
+        for (int i = 0; i < Tag.KEY_SIZE; ++i)
+            data[i] = 0;
+        if (mAuthKeyB || !ac.isKeyBReadable()) {
+            for (int i = Tag.BLOCK_SIZE - Tag.KEY_SIZE; i < Tag.BLOCK_SIZE; ++i)
+                data[i] = 0;
+        }
+        return data;
+    }
+
+    @Override
+    public void writeBlock(int block, byte[] data) throws IOException {
+        assert (data != null && data.length == Tag.BLOCK_SIZE);
+        int sector = mType.blockToSector(block);
+        assertAuthenticated(sector);
+        delay(mWriteMicros);
+        ++mWrites;
+
+        // The manufacturer block is read only
+        if (block == 0)
+            throw deny("Write denied");
+
+        AccessConditions ac = accessConditions(sector);
+        int group = group(sector, block);
+        if (ac == null)
+            throw deny("Write denied");
+
+        if (group != AccessConditions.TRAILER) {
+            if (!ac.canWrite(group, mAuthKeyB))
+                throw deny("Write denied");
+            System.arraycopy(data, 0, mData[block], 0, Tag.BLOCK_SIZE);
+            return;
+        }
+
+        // Apply each part of the trailer the current key may change
+        boolean keyA = ac.canWriteKeyA(mAuthKeyB);
+        boolean acl = ac.canWriteAccessBits(mAuthKeyB);
+        boolean keyB = ac.canWriteKeyB(mAuthKeyB);
+        if (!keyA && !acl && !keyB)
+            throw deny("Write denied");
+
+        byte[] dest = mData[block];
+        if (keyA)
+            System.arraycopy(data, 0, dest, 0, Tag.KEY_SIZE);
+        if (acl)
+            System.arraycopy(data, Tag.KEY_SIZE, dest, Tag.KEY_SIZE, Tag.BLOCK_SIZE - 2 * Tag.KEY_SIZE);
+        if (keyB)
+            System.arraycopy(data, Tag.BLOCK_SIZE - Tag.KEY_SIZE, dest, Tag.BLOCK_SIZE - Tag.KEY_SIZE, Tag.KEY_SIZE);
+    }
+
+    // -- Card logic -------------------------------------------------
+
+    private boolean authenticate(int sector, byte[] key, boolean keyB) throws IOException {
+        if (!mConnected)
+            throw new IOException("Not connected");
+        assertInField();
+
+        // A halted card has to be woken up before the next command
+        if (mHalted) {
+            delay(mReselectMicros);
+            mHalted = false;
+        }
+
+        delay(mAuthMicros);
+        ++mAuths;
+
+        byte[] trailer = mData[trailerBlock(sector)];
+        int offset = keyB ? Tag.BLOCK_SIZE - Tag.KEY_SIZE : 0;
+        boolean match = key != null && key.length == Tag.KEY_SIZE;
+        for (int i = 0; match && i < Tag.KEY_SIZE; ++i)
+            match = trailer[offset + i] == key[i];
+
+        if (!match) {
+            ++mFailedAuths;
+            mHalted = true;
+            mAuthSector = -1;
+            return false;
+        }
+
+        mAuthSector = sector;
+        mAuthKeyB = keyB;
+        return true;
+    }
+
+    private void assertAuthenticated(int sector) throws IOException {
+        if (!mConnected)
+            throw new IOException("Not connected");
+        assertInField();
+        if (mHalted)
+            throw new IOException("Tag halted");
+        if (mAuthSector != sector)
+            throw deny("Sector not authenticated");
+    }
+
+    private void assertInField() throws IOException {
+        if (mCommandsInField < 0)
+            return;
+        if (mCommandsInField == 0) {
+            mConnected = false;
+            mAuthSector = -1;
+            throw new TagLostException("Tag was lost.");
+        }
+        --mCommandsInField;
+    }
+
+    private IOException deny(String message) {
+        mHalted = true;
+        mAuthSector = -1;
+        return new IOException(message);
+    }
+
+    private int trailerBlock(int sector) {
+        return mType.sectorToBlock(sector) + mType.getBlockCountInSector(sector) - 1;
+    }
+
+    // Return the access conditions of a sector, or null if the access bits
+    // are corrupt (which blocks the sector on a real card).
+    private AccessConditions accessConditions(int sector) {
+        return AccessConditions.decode(mData[trailerBlock(sector)]);
+    }
+
+    private int group(int sector, int block) {
+        return AccessConditions.getGroup(block - mType.sectorToBlock(sector), mType.getBlockCountInSector(sector));
+    }
+
+    private static void delay(long micros) {
+        if (micros > 0)
+            LockSupport.parkNanos(micros * 1000);
+    }
+}